@@ -0,0 +1,337 @@
+package com.dzenm.download;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 下载完成的文件缓存. 以URL和校验值(文件版本、ETag或者文件摘要)计算的SHA-256作为文件名,
+ * 同一个URL的不同版本是不同的缓存, 不会把旧版本的文件当作新版本使用.
+ * 写入缓存时先写入临时文件并同步到磁盘, 再重命名为缓存文件, 存在的缓存文件一定是完整的,
+ * 命中缓存时不需要重新计算摘要. 缓存文件和目标文件在同一个文件系统时使用硬链接代替复制,
+ * 两者共享同一份数据, 不会重复写入磁盘. 缓存总大小超过上限时按最近使用的时间移除最久没有使用的文件
+ */
+public final class ArtifactCache {
+
+    private static final String TAG = "ArtifactCache";
+
+    /**
+     * 默认的缓存目录和缓存大小上限 {@link #getDefault(Context)}
+     */
+    private static final String DEFAULT_DIRECTORY = "download_artifacts";
+    private static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * 写入中的临时文件后缀, 重命名之前不会被当作缓存
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static volatile ArtifactCache sDefault;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /**
+     * 缓存文件名和文件大小, 按访问顺序排列, 第一个是最久没有使用的缓存
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize = 0;
+    private boolean isLoaded = false;
+
+    /**
+     * @param directory 缓存目录, 目录中只能保存缓存文件
+     * @param maxSize   缓存总大小上限(字节)
+     */
+    public ArtifactCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @param context Context
+     * @return 应用缓存目录中的默认缓存, 大小上限256MB
+     */
+    public static ArtifactCache getDefault(Context context) {
+        ArtifactCache cache = sDefault;
+        if (cache == null) {
+            synchronized (ArtifactCache.class) {
+                if (sDefault == null) {
+                    File directory = new File(context.getApplicationContext().getCacheDir(), DEFAULT_DIRECTORY);
+                    sDefault = new ArtifactCache(directory, DEFAULT_MAX_SIZE);
+                }
+                cache = sDefault;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param version 文件的版本, 例如APK的版本号
+     * @return 以文件版本作为校验值, 不同的下载方式使用相同的版本时共享同一个缓存
+     */
+    public static String versionValidator(String version) {
+        return "version:" + version;
+    }
+
+    /**
+     * @param algorithm 摘要算法, 例如 SHA-256
+     * @param digest    文件的摘要(十六进制, 不区分大小写)
+     * @return 以文件摘要作为校验值
+     */
+    public static String digestValidator(String algorithm, String digest) {
+        return algorithm.toUpperCase(Locale.US) + ":" + digest.toLowerCase(Locale.US);
+    }
+
+    /**
+     * 查找缓存文件并更新最近使用的时间
+     *
+     * @param url       文件的URL
+     * @param validator 文件的校验值, 例如文件版本、ETag或者文件摘要
+     * @return 缓存文件, 不存在时返回null
+     */
+    @Nullable
+    public synchronized File get(String url, String validator) {
+        load();
+        String key = keyOf(url, validator);
+        if (mEntries.get(key) == null) return null;
+        File file = new File(mDirectory, key);
+        if (!file.isFile()) {
+            // 缓存文件被其它地方删除
+            mSize -= mEntries.remove(key);
+            return null;
+        }
+        // 最近使用的时间保存在文件的修改时间中, 重启后仍然按最近使用的顺序移除
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * 命中缓存时将缓存文件链接或者复制到目标文件, 目标文件同样先写入临时文件再重命名
+     *
+     * @param url       文件的URL
+     * @param validator 文件的校验值
+     * @param target    目标文件, 已存在时覆盖
+     * @return 是否命中缓存
+     * @throws IOException 复制文件失败
+     */
+    public boolean copyTo(String url, String validator, File target) throws IOException {
+        File file = get(url, validator);
+        if (file == null) return false;
+        copyFile(file, target);
+        return true;
+    }
+
+    /**
+     * 将下载完成的文件写入缓存, 已存在相同的缓存时替换. 下载完成的文件不能再原地修改,
+     * 否则和它共享数据的缓存文件也会被修改
+     *
+     * @param url       文件的URL
+     * @param validator 文件的校验值
+     * @param source    下载完成的文件, 写入后仍然保留
+     * @return 缓存文件, 文件大小超过缓存总大小上限时不写入缓存, 返回null
+     * @throws IOException 写入缓存失败
+     */
+    @Nullable
+    public File put(String url, String validator, File source) throws IOException {
+        if (source.length() > mMaxSize) {
+            // 写入后会被立即移除, 不需要写入
+            Log.d(TAG, "文件大小超过缓存上限, 不写入缓存: " + url);
+            return null;
+        }
+        String key = keyOf(url, validator);
+        File file = new File(mDirectory, key);
+        if (!mDirectory.exists() && !mDirectory.mkdirs() && !mDirectory.exists()) {
+            throw new IOException("创建缓存目录失败: " + mDirectory);
+        }
+        // 先读取缓存目录, 读取时会删除临时文件. 复制文件不需要持有锁, 每次写入使用不同的临时文件
+        synchronized (this) {
+            load();
+        }
+        File temp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+        try {
+            linkOrCopy(source, temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        synchronized (this) {
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("写入缓存失败: " + file);
+            }
+            Long oldLength = mEntries.put(key, file.length());
+            if (oldLength != null) mSize -= oldLength;
+            mSize += file.length();
+            trimToSize(mMaxSize);
+        }
+        Log.d(TAG, "写入缓存: " + url + ", 缓存大小: " + mSize);
+        return file;
+    }
+
+    /**
+     * @param url       文件的URL
+     * @param validator 文件的校验值
+     */
+    public synchronized void remove(String url, String validator) {
+        load();
+        String key = keyOf(url, validator);
+        Long length = mEntries.remove(key);
+        if (length != null) mSize -= length;
+        new File(mDirectory, key).delete();
+    }
+
+    /**
+     * 删除所有缓存文件
+     */
+    public synchronized void clear() {
+        load();
+        trimToSize(0);
+    }
+
+    /**
+     * @return 缓存文件的总大小(字节)
+     */
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    /**
+     * @return 缓存总大小上限(字节)
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 移除最久没有使用的缓存, 直到缓存总大小不超过指定大小
+     */
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+            Log.d(TAG, "移除缓存: " + entry.getKey());
+        }
+    }
+
+    /**
+     * 第一次访问时读取缓存目录, 按文件的修改时间恢复最近使用的顺序, 删除未完成的临时文件
+     */
+    private void load() {
+        if (isLoaded) return;
+        isLoaded = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        List<File> entries = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        for (File file : entries) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // 写入过程中进程被杀死留下的临时文件
+                file.delete();
+            } else if (file.isFile()) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * @return URL和校验值的SHA-256(十六进制小写), 作为缓存文件名
+     */
+    private static String keyOf(String url, String validator) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = messageDigest.digest((url + '\n' + validator).getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 先链接或者复制到目标文件所在目录的临时文件再重命名, 目标文件不会只有部分数据
+     */
+    private static void copyFile(File source, File target) throws IOException {
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try {
+            linkOrCopy(source, temp);
+            if (!temp.renameTo(target)) {
+                throw new IOException("重命名文件失败: " + target);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * 在同一个文件系统中时创建硬链接, 否则复制文件内容. 目标文件已存在时先删除
+     */
+    private static void linkOrCopy(File source, File target) throws IOException {
+        target.delete();
+        try {
+            Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+            return;
+        } catch (ErrnoException e) {
+            // 跨文件系统(EXDEV)或者文件系统不支持硬链接时复制
+            Log.d(TAG, "创建硬链接失败, 复制文件: " + e.getMessage());
+        }
+        copyContent(source, target);
+    }
+
+    /**
+     * 复制文件内容并同步到磁盘
+     */
+    private static void copyContent(File source, File target) throws IOException {
+        try (FileInputStream input = new FileInputStream(source);
+             FileOutputStream output = new FileOutputStream(target)) {
+            FileChannel in = input.getChannel();
+            FileChannel out = output.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long count = in.transferTo(position, size - position, out);
+                if (count <= 0) break;
+                position += count;
+            }
+            if (position != size) throw new IOException("复制文件不完整: " + source);
+            out.force(true);
+        }
+    }
+}
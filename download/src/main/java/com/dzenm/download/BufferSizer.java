@@ -0,0 +1,70 @@
+package com.dzenm.download;
+
+/**
+ * 根据读取的吞吐量选择读取缓冲区的大小, 每个分段一个. 从 {@link ByteBufferPool#MIN_BUFFER_SIZE} 开始,
+ * 缓冲区能在 {@link #TARGET_FILL_TIME} 内填满并且每次读取都返回大量数据时逐步增大,
+ * 直到 {@link ByteBufferPool#getMaxBufferSize()}; 吞吐量下降或者内存不足时逐步缩小.
+ * 高速网络使用大缓冲区减少读取和写入磁盘的次数, 同时进行的多个慢速下载只占用小缓冲区
+ */
+final class BufferSizer {
+
+    /**
+     * 期望填满一个缓冲区的时间(纳秒)
+     */
+    private static final long TARGET_FILL_TIME = 50 * 1000000L;
+
+    /**
+     * 吞吐量平滑的时间常数(纳秒), 按读取的耗时加权, 耗时越长的读取对吞吐量的影响越大
+     */
+    private static final double SMOOTHING_TIME = 1000 * 1000000.0;
+
+    private int mSize = ByteBufferPool.MIN_BUFFER_SIZE;
+
+    /**
+     * 平滑后的吞吐量(字节/纳秒), 还没有读取时为0
+     */
+    private double mThroughput = 0;
+
+    /**
+     * @return 下一次读取使用的缓冲区大小
+     */
+    int getSize() {
+        int maxSize = ByteBufferPool.getInstance().getMaxBufferSize();
+        if (mSize > maxSize) mSize = maxSize;
+        return mSize;
+    }
+
+    /**
+     * 记录一次填充缓冲区的结果并调整缓冲区大小
+     *
+     * @param count     读取的字节数
+     * @param readCount 调用读取的次数
+     * @param elapsed   读取的耗时(纳秒)
+     * @param isFull    是否填满了请求的大小, 数据流结束或者限速时没有填满, 不能说明缓冲区太大
+     * @return 调整后的缓冲区大小
+     */
+    int onRead(long count, int readCount, long elapsed, boolean isFull) {
+        if (count <= 0 || elapsed <= 0) return getSize();
+        double throughput = (double) count / elapsed;
+        double weight = 1 - Math.exp(-elapsed / SMOOTHING_TIME);
+        mThroughput = mThroughput == 0 ? throughput : weight * throughput + (1 - weight) * mThroughput;
+
+        long target = (long) (mThroughput * TARGET_FILL_TIME);
+        long bytesPerRead = count / Math.max(1, readCount);
+        int size = getSize();
+        if (isFull && target > size && bytesPerRead * 4 >= size) {
+            // 网络每次读取都返回大量数据, 缓冲区在目标时间内就被填满
+            mSize = Math.min(size * 2, ByteBufferPool.getInstance().getMaxBufferSize());
+        } else if (target < size / 4 && size > ByteBufferPool.MIN_BUFFER_SIZE) {
+            mSize = size / 2;
+        }
+        return getSize();
+    }
+
+    /**
+     * @return 平滑后的吞吐量(字节/秒)
+     */
+    long getThroughput() {
+        return (long) (mThroughput * 1000000000L);
+    }
+}
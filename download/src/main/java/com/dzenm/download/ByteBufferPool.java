@@ -0,0 +1,199 @@
+package com.dzenm.download;
+
+import android.content.ComponentCallbacks2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载使用的直接内存缓冲区池, 所有下载任务共享. 使用直接内存缓冲区写入FileChannel时,
+ * 不需要再复制到临时的直接内存缓冲区. 缓冲区大小是 {@link #MIN_BUFFER_SIZE} 的2的幂倍,
+ * 每种大小最多缓存 {@link DownloadConfig#getBufferPoolSize()} 个缓冲区, 超出的缓冲区在归还时直接丢弃,
+ * 通过命中和未命中的次数调整池的大小. 内存不足时 {@link #trimMemory(int)} 释放缓存的缓冲区,
+ * 并在一段时间内限制缓冲区的最大大小
+ */
+public final class ByteBufferPool {
+
+    /**
+     * 默认的缓冲区大小, 不需要按吞吐量调整缓冲区大小时使用
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 缓冲区的最小和最大大小
+     */
+    static final int MIN_BUFFER_SIZE = 8 * 1024;
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * 内存不足后限制缓冲区大小的时间(纳秒)
+     */
+    private static final long PRESSURE_DURATION = 60 * 1000000000L;
+
+    private static final ByteBufferPool INSTANCE = new ByteBufferPool();
+
+    /**
+     * 按大小分类的空闲缓冲区, 下标为 log2(大小 / MIN_BUFFER_SIZE)
+     */
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] mBuffers = new ArrayDeque[indexOf(MAX_BUFFER_SIZE) + 1];
+
+    /**
+     * 从池中获取到缓冲区的次数和需要新分配缓冲区的次数
+     */
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * 内存不足时限制的缓冲区最大大小和限制结束的时间
+     */
+    private volatile int mPressureLimit = MAX_BUFFER_SIZE;
+    private volatile long mPressureEndTime = 0;
+
+    private ByteBufferPool() {
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    public static ByteBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return 默认大小的缓冲区 {@link #BUFFER_SIZE}
+     */
+    ByteBuffer acquire() {
+        return acquire(BUFFER_SIZE);
+    }
+
+    /**
+     * 获取一个缓冲区, 池中没有空闲的缓冲区时分配新的缓冲区
+     *
+     * @param size 需要的大小, 向上取整为2的幂, 不超过 {@link #getMaxBufferSize()}
+     * @return 已清空的缓冲区, 使用完成后需要调用 {@link #release(ByteBuffer)} 归还
+     */
+    ByteBuffer acquire(int size) {
+        size = sizeOf(Math.min(size, getMaxBufferSize()));
+        ArrayDeque<ByteBuffer> buffers = mBuffers[indexOf(size)];
+        ByteBuffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.pollFirst();
+        }
+        if (buffer != null) {
+            mHitCount.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        mMissCount.incrementAndGet();
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * 归还缓冲区, 池已满或者缓冲区超过当前的最大大小时丢弃
+     *
+     * @param buffer 通过 {@link #acquire(int)} 获取的缓冲区
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        int size = buffer.capacity();
+        if (size < MIN_BUFFER_SIZE || size > getMaxBufferSize() || sizeOf(size) != size) return;
+        ArrayDeque<ByteBuffer> buffers = mBuffers[indexOf(size)];
+        synchronized (buffers) {
+            if (buffers.size() < DownloadConfig.getBufferPoolSize()) {
+                buffers.offerFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * 内存不足时释放所有缓存的缓冲区, 在 {@link #PRESSURE_DURATION} 内限制新分配的缓冲区大小,
+     * 下载中的缓冲区在下一次选择大小时缩小
+     *
+     * @param level {@link ComponentCallbacks2#onTrimMemory(int)} 的级别
+     */
+    public void trimMemory(int level) {
+        int limit;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            limit = MIN_BUFFER_SIZE;
+        } else {
+            limit = Math.max(MIN_BUFFER_SIZE, DownloadConfig.getMaxBufferSize() / 4);
+        }
+        mPressureLimit = limit;
+        mPressureEndTime = System.nanoTime() + PRESSURE_DURATION;
+        for (ArrayDeque<ByteBuffer> buffers : mBuffers) {
+            synchronized (buffers) {
+                buffers.clear();
+            }
+        }
+    }
+
+    /**
+     * @return 当前允许的缓冲区最大大小, 内存不足后的一段时间内小于 {@link DownloadConfig#getMaxBufferSize()}
+     */
+    public int getMaxBufferSize() {
+        int maxSize = DownloadConfig.getMaxBufferSize();
+        if (mPressureEndTime != 0 && System.nanoTime() - mPressureEndTime < 0) {
+            maxSize = Math.min(maxSize, mPressureLimit);
+        }
+        return maxSize;
+    }
+
+    /**
+     * @return 从池中获取到缓冲区的次数
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return 池中没有空闲的缓冲区, 需要新分配缓冲区的次数
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return 池中当前空闲的缓冲区数量
+     */
+    public int getPooledCount() {
+        int count = 0;
+        for (ArrayDeque<ByteBuffer> buffers : mBuffers) {
+            synchronized (buffers) {
+                count += buffers.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 池中当前空闲的缓冲区占用的内存(字节)
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (ArrayDeque<ByteBuffer> buffers : mBuffers) {
+            synchronized (buffers) {
+                for (ByteBuffer buffer : buffers) {
+                    bytes += buffer.capacity();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 不小于size的缓冲区大小, 范围[{@link #MIN_BUFFER_SIZE}, {@link #MAX_BUFFER_SIZE}]
+     */
+    static int sizeOf(int size) {
+        if (size <= MIN_BUFFER_SIZE) return MIN_BUFFER_SIZE;
+        if (size >= MAX_BUFFER_SIZE) return MAX_BUFFER_SIZE;
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+
+    private static int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size / MIN_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,190 @@
+package com.dzenm.download;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PooledHttpTransport} 的连接池, 按照协议、Host和端口保存空闲的连接.
+ * 每个Host最多保存 {@link DownloadConfig#getMaxIdleConnectionsPerHost()} 个空闲连接,
+ * 空闲时间超过 {@link DownloadConfig#getKeepAliveDuration()} 的连接由后台线程关闭, 没有空闲连接时后台线程结束
+ */
+public final class ConnectionPool {
+
+    /**
+     * 空闲的连接, key为 {@link #keyOf(URL)}, 最近归还的连接在队列头部
+     */
+    private final Map<String, ArrayDeque<HttpConnection>> mIdleConnections = new HashMap<>();
+    private volatile int mIdleCount = 0;
+    private boolean isCleanupRunning = false;
+
+    /**
+     * 新建连接的次数和复用连接的次数, 只在持有锁时修改, 读取不需要加锁
+     */
+    private volatile long mConnectCount = 0;
+    private volatile long mReuseCount = 0;
+
+    private final Runnable mCleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                long waitNanos = cleanup(System.nanoTime());
+                if (waitNanos < 0) return;
+                synchronized (ConnectionPool.this) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(ConnectionPool.this, waitNanos);
+                    } catch (InterruptedException e) {
+                        isCleanupRunning = false;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * @return 连接池中的key, 相同key的请求可以复用同一个连接
+     */
+    static String keyOf(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    /**
+     * 取出一个可用的空闲连接, 已被服务器关闭的连接直接丢弃
+     *
+     * @param key {@link #keyOf(URL)}
+     * @return 空闲的连接, 没有可用的连接时返回null
+     */
+    HttpConnection get(String key) {
+        while (true) {
+            HttpConnection connection;
+            synchronized (this) {
+                ArrayDeque<HttpConnection> connections = mIdleConnections.get(key);
+                connection = connections == null ? null : connections.pollFirst();
+                if (connection == null) {
+                    mConnectCount++;
+                    return null;
+                }
+                mIdleCount--;
+                if (connections.isEmpty()) mIdleConnections.remove(key);
+            }
+            if (connection.isHealthy()) {
+                synchronized (this) {
+                    mReuseCount++;
+                }
+                return connection;
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * 归还响应已读取完成的连接, 该Host的空闲连接超过上限时关闭最早归还的连接
+     *
+     * @param connection 空闲的连接
+     */
+    void put(HttpConnection connection) {
+        HttpConnection evicted = null;
+        synchronized (this) {
+            connection.mIdleAtNanos = System.nanoTime();
+            ArrayDeque<HttpConnection> connections = mIdleConnections.get(connection.getKey());
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                mIdleConnections.put(connection.getKey(), connections);
+            }
+            connections.offerFirst(connection);
+            mIdleCount++;
+            if (connections.size() > DownloadConfig.getMaxIdleConnectionsPerHost()) {
+                evicted = connections.pollLast();
+                mIdleCount--;
+            }
+            if (!isCleanupRunning) {
+                isCleanupRunning = true;
+                Thread thread = new Thread(mCleanupRunnable, "DownloadConnectionPool");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        if (evicted != null) evicted.close();
+    }
+
+    /**
+     * 关闭空闲时间超过保持时间的连接
+     *
+     * @param now 当前时间(纳秒)
+     * @return 距离下一个连接到期的时间(纳秒), 没有空闲连接时返回-1
+     */
+    private long cleanup(long now) {
+        long keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(DownloadConfig.getKeepAliveDuration());
+        long waitNanos = -1;
+        List<HttpConnection> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<ArrayDeque<HttpConnection>> iterator = mIdleConnections.values().iterator();
+            while (iterator.hasNext()) {
+                ArrayDeque<HttpConnection> connections = iterator.next();
+                Iterator<HttpConnection> connectionIterator = connections.iterator();
+                while (connectionIterator.hasNext()) {
+                    HttpConnection connection = connectionIterator.next();
+                    long idleNanos = now - connection.mIdleAtNanos;
+                    if (idleNanos >= keepAliveNanos) {
+                        connectionIterator.remove();
+                        mIdleCount--;
+                        evicted.add(connection);
+                    } else if (waitNanos < 0 || keepAliveNanos - idleNanos < waitNanos) {
+                        waitNanos = keepAliveNanos - idleNanos;
+                    }
+                }
+                if (connections.isEmpty()) iterator.remove();
+            }
+            if (waitNanos < 0) isCleanupRunning = false;
+        }
+        for (HttpConnection connection : evicted) {
+            connection.close();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * 关闭所有空闲的连接
+     */
+    public void evictAll() {
+        List<HttpConnection> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<HttpConnection> connections : mIdleConnections.values()) {
+                evicted.addAll(connections);
+            }
+            mIdleConnections.clear();
+            mIdleCount = 0;
+        }
+        for (HttpConnection connection : evicted) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return 空闲的连接数量
+     */
+    public int getIdleCount() {
+        return mIdleCount;
+    }
+
+    /**
+     * @return 没有可用的空闲连接, 需要新建连接的次数
+     */
+    public long getConnectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * @return 复用空闲连接的次数
+     */
+    public long getReuseCount() {
+        return mReuseCount;
+    }
+}
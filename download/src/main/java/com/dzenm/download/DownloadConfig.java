@@ -0,0 +1,389 @@
+package com.dzenm.download;
+
+/**
+ * 下载服务的全局配置, 对DownloadService所在进程内的所有下载任务生效,
+ * 单个下载任务可以通过{@link DownloadManager}的设置覆盖全局配置
+ */
+public final class DownloadConfig {
+
+    /**
+     * 分段下载的最大分段数量
+     */
+    public static final int MAX_SEGMENT_COUNT = 16;
+
+    /**
+     * 默认的分段数量, 1表示使用单线程下载 {@link #setSegmentCount(int)}
+     */
+    private static volatile int sSegmentCount = 1;
+
+    /**
+     * 进度回调的最小时间间隔(毫秒) {@link #setProgressInterval(long)}
+     */
+    private static volatile long sProgressInterval = 200;
+
+    /**
+     * 触发进度回调的下载字节数, 小于等于0表示只按时间间隔回调 {@link #setProgressBytes(long)}
+     */
+    private static volatile long sProgressBytes = 0;
+
+    /**
+     * 同时下载的最大任务数量 {@link #setMaxConcurrentDownloads(int)}
+     */
+    private static volatile int sMaxConcurrentDownloads = 3;
+
+    /**
+     * 同一个Host同时下载的最大任务数量 {@link #setMaxDownloadsPerHost(int)}
+     */
+    private static volatile int sMaxDownloadsPerHost = 2;
+
+    /**
+     * 断点记录写入磁盘的时间间隔(毫秒) {@link #setJournalInterval(long)}
+     */
+    private static volatile long sJournalInterval = 2000;
+
+    /**
+     * 直接内存缓冲区池中每种大小最多缓存的缓冲区数量 {@link #setBufferPoolSize(int)}
+     */
+    private static volatile int sBufferPoolSize = 16;
+
+    /**
+     * 按吞吐量调整的读取缓冲区的最大大小(字节) {@link #setMaxBufferSize(int)}
+     */
+    private static volatile int sMaxBufferSize = 256 * 1024;
+
+    /**
+     * 每个分段在读取和写入之间最多同时存在的缓冲区数量 {@link #setPipelineDepth(int)}
+     */
+    private static volatile int sPipelineDepth = 4;
+
+    /**
+     * 下载使用的HTTP传输层 {@link #setHttpTransport(HttpTransport)}
+     */
+    private static volatile HttpTransport sHttpTransport;
+
+    /**
+     * 连接池中每个Host最多保存的空闲连接数量 {@link #setMaxIdleConnectionsPerHost(int)}
+     */
+    private static volatile int sMaxIdleConnectionsPerHost = 5;
+
+    /**
+     * 空闲连接的保持时间(毫秒) {@link #setKeepAliveDuration(long)}
+     */
+    private static volatile long sKeepAliveDuration = 5 * 60 * 1000;
+
+    /**
+     * 已结束的下载任务在下载服务中的保留时间(毫秒) {@link #setTaskRetention(long)}
+     */
+    private static volatile long sTaskRetention = 5 * 60 * 1000;
+
+    /**
+     * 所有下载任务共享的限速器 {@link #setMaxBytesPerSecond(long)}
+     */
+    private static final RateLimiter sRateLimiter = new RateLimiter(0);
+
+    /**
+     * 下载完成的文件缓存 {@link #setArtifactCache(ArtifactCache)}
+     */
+    private static volatile ArtifactCache sArtifactCache;
+
+    /**
+     * 服务器是否支持Range请求的探测结果的有效时间(毫秒) {@link #setCapabilityTtl(long)}
+     */
+    private static volatile long sCapabilityTtl = 10 * 60 * 1000;
+
+    /**
+     * 重定向后的最终地址的有效时间(毫秒) {@link #setRedirectTtl(long)}
+     */
+    private static volatile long sRedirectTtl = 5 * 60 * 1000;
+
+    /**
+     * 下载结束时接收下载指标的回调 {@link #setMetricsListener(DownloadMetrics.Listener)}
+     */
+    private static volatile DownloadMetrics.Listener sMetricsListener;
+
+    private DownloadConfig() {
+    }
+
+    /**
+     * @param segmentCount 全局默认的分段下载数量, 取值范围[1, {@link #MAX_SEGMENT_COUNT}]
+     */
+    public static void setSegmentCount(int segmentCount) {
+        sSegmentCount = Math.max(1, Math.min(segmentCount, MAX_SEGMENT_COUNT));
+    }
+
+    /**
+     * @return 全局默认的分段下载数量
+     */
+    public static int getSegmentCount() {
+        return sSegmentCount;
+    }
+
+    /**
+     * @param progressInterval 进度回调的最小时间间隔(毫秒), 距离上一次回调超过该时间才会再次回调
+     */
+    public static void setProgressInterval(long progressInterval) {
+        sProgressInterval = Math.max(0, progressInterval);
+    }
+
+    /**
+     * @return 进度回调的最小时间间隔(毫秒)
+     */
+    public static long getProgressInterval() {
+        return sProgressInterval;
+    }
+
+    /**
+     * @param progressBytes 距离上一次回调下载的字节数达到该值时立即回调, 小于等于0时只按时间间隔回调
+     */
+    public static void setProgressBytes(long progressBytes) {
+        sProgressBytes = progressBytes;
+    }
+
+    /**
+     * @return 触发进度回调的下载字节数
+     */
+    public static long getProgressBytes() {
+        return sProgressBytes;
+    }
+
+    /**
+     * @param maxConcurrentDownloads 同时下载的最大任务数量, 超出的任务按优先级排队等待
+     */
+    public static void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        sMaxConcurrentDownloads = Math.max(1, maxConcurrentDownloads);
+    }
+
+    /**
+     * @return 同时下载的最大任务数量
+     */
+    public static int getMaxConcurrentDownloads() {
+        return sMaxConcurrentDownloads;
+    }
+
+    /**
+     * @param maxDownloadsPerHost 同一个Host同时下载的最大任务数量
+     */
+    public static void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        sMaxDownloadsPerHost = Math.max(1, maxDownloadsPerHost);
+    }
+
+    /**
+     * @return 同一个Host同时下载的最大任务数量
+     */
+    public static int getMaxDownloadsPerHost() {
+        return sMaxDownloadsPerHost;
+    }
+
+    /**
+     * @param journalInterval 断点记录写入磁盘的时间间隔(毫秒), 间隔越短进程被杀死后需要重新下载的数据越少,
+     *                        但是每次写入都需要将下载的数据同步到磁盘
+     */
+    public static void setJournalInterval(long journalInterval) {
+        sJournalInterval = Math.max(0, journalInterval);
+    }
+
+    /**
+     * @return 断点记录写入磁盘的时间间隔(毫秒)
+     */
+    public static long getJournalInterval() {
+        return sJournalInterval;
+    }
+
+    /**
+     * @param bufferPoolSize 直接内存缓冲区池中每种大小最多缓存的缓冲区数量,
+     *                       可以根据 {@link ByteBufferPool} 的命中次数调整
+     */
+    public static void setBufferPoolSize(int bufferPoolSize) {
+        sBufferPoolSize = Math.max(0, bufferPoolSize);
+    }
+
+    /**
+     * @return 直接内存缓冲区池中每种大小最多缓存的缓冲区数量
+     */
+    public static int getBufferPoolSize() {
+        return sBufferPoolSize;
+    }
+
+    /**
+     * @param maxBufferSize 读取缓冲区的最大大小(字节), 向下取整为2的幂, 取值范围[8KB, 1MB].
+     *                      每个分段从8KB开始, 根据吞吐量逐渐增大到该大小
+     */
+    public static void setMaxBufferSize(int maxBufferSize) {
+        int size = Math.max(ByteBufferPool.MIN_BUFFER_SIZE, Math.min(maxBufferSize, ByteBufferPool.MAX_BUFFER_SIZE));
+        sMaxBufferSize = Integer.highestOneBit(size);
+    }
+
+    /**
+     * @return 读取缓冲区的最大大小(字节)
+     */
+    public static int getMaxBufferSize() {
+        return sMaxBufferSize;
+    }
+
+    /**
+     * @param pipelineDepth 每个分段在读取和写入之间最多同时存在的缓冲区数量, 大于1时由单独的线程写入磁盘,
+     *                      读取网络数据和写入磁盘同时进行; 小于等于1时在同一个线程中交替读取和写入.
+     *                      修改后对之后开始的分段生效
+     */
+    public static void setPipelineDepth(int pipelineDepth) {
+        sPipelineDepth = Math.max(0, pipelineDepth);
+    }
+
+    /**
+     * @return 每个分段在读取和写入之间最多同时存在的缓冲区数量
+     */
+    public static int getPipelineDepth() {
+        return sPipelineDepth;
+    }
+
+    /**
+     * @param httpTransport 下载使用的HTTP传输层, 为null时使用默认的 {@link UrlConnectionTransport},
+     *                      遵循系统代理和网络策略. 需要复用连接并统计各阶段耗时时可以设置为
+     *                      {@link PooledHttpTransport}, 它直接连接服务器, 不经过代理.
+     *                      修改后对之后开始的下载生效
+     */
+    public static void setHttpTransport(HttpTransport httpTransport) {
+        sHttpTransport = httpTransport;
+    }
+
+    /**
+     * @return 下载使用的HTTP传输层
+     */
+    public static HttpTransport getHttpTransport() {
+        HttpTransport httpTransport = sHttpTransport;
+        if (httpTransport == null) {
+            synchronized (DownloadConfig.class) {
+                if (sHttpTransport == null) sHttpTransport = new UrlConnectionTransport();
+                httpTransport = sHttpTransport;
+            }
+        }
+        return httpTransport;
+    }
+
+    /**
+     * @param maxIdleConnectionsPerHost 连接池中每个Host最多保存的空闲连接数量, 0表示不复用连接
+     */
+    public static void setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+        sMaxIdleConnectionsPerHost = Math.max(0, maxIdleConnectionsPerHost);
+    }
+
+    /**
+     * @return 连接池中每个Host最多保存的空闲连接数量
+     */
+    public static int getMaxIdleConnectionsPerHost() {
+        return sMaxIdleConnectionsPerHost;
+    }
+
+    /**
+     * @param keepAliveDuration 空闲连接的保持时间(毫秒), 超过该时间没有被复用的连接会被关闭
+     */
+    public static void setKeepAliveDuration(long keepAliveDuration) {
+        sKeepAliveDuration = Math.max(0, keepAliveDuration);
+    }
+
+    /**
+     * @return 空闲连接的保持时间(毫秒)
+     */
+    public static long getKeepAliveDuration() {
+        return sKeepAliveDuration;
+    }
+
+    /**
+     * 设置所有下载任务的总速度上限, 例如后台下载资源包时避免占满带宽影响前台的请求,
+     * 修改后正在下载的任务立即按新的速度下载. 单个任务的速度上限通过
+     * {@link DownloadManager#setMaxBytesPerSecond(long)} 设置
+     *
+     * @param maxBytesPerSecond 每秒最多下载的字节数, 小于等于0表示不限速
+     */
+    public static void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        sRateLimiter.setRate(maxBytesPerSecond);
+    }
+
+    /**
+     * @return 所有下载任务每秒最多下载的字节数, 0表示不限速
+     */
+    public static long getMaxBytesPerSecond() {
+        return sRateLimiter.getRate();
+    }
+
+    static RateLimiter getRateLimiter() {
+        return sRateLimiter;
+    }
+
+    /**
+     * @param taskRetention 已结束(成功、失败或暂停)的下载任务在下载服务中的保留时间(毫秒),
+     *                      超过该时间后移除, 释放任务持有的文件和回调
+     */
+    public static void setTaskRetention(long taskRetention) {
+        sTaskRetention = Math.max(0, taskRetention);
+    }
+
+    /**
+     * @return 已结束的下载任务在下载服务中的保留时间(毫秒)
+     */
+    public static long getTaskRetention() {
+        return sTaskRetention;
+    }
+
+    /**
+     * 设置下载完成的文件缓存, 设置了文件版本 {@link DownloadManager#setVersion(String)}
+     * 或者期望的摘要的下载任务命中缓存时不再下载
+     *
+     * @param artifactCache 文件缓存, 为null时使用 {@link ArtifactCache#getDefault(android.content.Context)}
+     */
+    public static void setArtifactCache(ArtifactCache artifactCache) {
+        sArtifactCache = artifactCache;
+    }
+
+    /**
+     * @return 设置的文件缓存, 没有设置时返回null
+     */
+    public static ArtifactCache getArtifactCache() {
+        return sArtifactCache;
+    }
+
+    /**
+     * @param capabilityTtl 服务器是否支持Range请求的探测结果的有效时间(毫秒), 有效时间内下载同一个URL不再探测,
+     *                      0表示每次都重新探测 {@link RangeCapabilityCache}
+     */
+    public static void setCapabilityTtl(long capabilityTtl) {
+        sCapabilityTtl = Math.max(0, capabilityTtl);
+    }
+
+    /**
+     * @return 服务器是否支持Range请求的探测结果的有效时间(毫秒)
+     */
+    public static long getCapabilityTtl() {
+        return sCapabilityTtl;
+    }
+
+    /**
+     * @param redirectTtl 重定向后的最终地址的有效时间(毫秒), 有效时间内直接请求最终地址, 0表示每次都请求原始地址.
+     *                    CDN的签名地址通常有有效期, 不能超过签名的有效期 {@link RedirectCache}
+     */
+    public static void setRedirectTtl(long redirectTtl) {
+        sRedirectTtl = Math.max(0, redirectTtl);
+    }
+
+    /**
+     * @return 重定向后的最终地址的有效时间(毫秒)
+     */
+    public static long getRedirectTtl() {
+        return sRedirectTtl;
+    }
+
+    /**
+     * @param metricsListener 每次下载结束时接收本次下载的指标, 在下载线程回调, 可以转发到自己的统计系统,
+     *                        为null时不回调
+     */
+    public static void setMetricsListener(DownloadMetrics.Listener metricsListener) {
+        sMetricsListener = metricsListener;
+    }
+
+    /**
+     * @return 下载结束时接收下载指标的回调
+     */
+    public static DownloadMetrics.Listener getMetricsListener() {
+        return sMetricsListener;
+    }
+}
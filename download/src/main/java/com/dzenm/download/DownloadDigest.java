@@ -0,0 +1,115 @@
+package com.dzenm.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 下载过程中计算文件的摘要, 不需要下载完成后再读取一遍文件.
+ * 摘要只能按顺序计算, 从文件开头连续写入的数据直接使用写入的缓冲区更新摘要; 多个分段同时下载时,
+ * 后面的分段先写入磁盘, 前面的分段下载完成后从文件中读取已写入的数据(通常还在页缓存中)继续计算.
+ * 断点续传时已下载的数据在第一次更新时读取
+ */
+class DownloadDigest {
+
+    private final MessageDigest mMessageDigest;
+    private final String mAlgorithm;
+
+    /**
+     * 期望的摘要(十六进制), 为null时只计算摘要不校验
+     */
+    private final String mExpectedDigest;
+
+    /**
+     * 已计算摘要的数据结束位置, 之前的数据都已经按顺序更新到摘要中
+     */
+    private long mPosition = 0;
+
+    /**
+     * @param algorithm      摘要算法, 例如 SHA-256、MD5
+     * @param expectedDigest 期望的摘要(十六进制), 为null时只计算摘要不校验
+     * @throws NoSuchAlgorithmException 不支持的摘要算法
+     */
+    DownloadDigest(String algorithm, String expectedDigest) throws NoSuchAlgorithmException {
+        mMessageDigest = MessageDigest.getInstance(algorithm);
+        mAlgorithm = algorithm;
+        mExpectedDigest = expectedDigest;
+    }
+
+    String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * 使用写入文件的数据更新摘要, 数据不是从当前位置开始时忽略, 之后从文件中读取
+     *
+     * @param data     写入文件的数据, 不改变缓冲区的位置
+     * @param position 数据写入文件的位置
+     */
+    synchronized void update(ByteBuffer data, long position) {
+        if (position != mPosition) return;
+        mPosition += data.remaining();
+        mMessageDigest.update(data.duplicate());
+    }
+
+    /**
+     * 从文件中读取已写入但还没有计算摘要的连续数据, 在其它分段的数据已经写入到当前位置之后调用
+     *
+     * @param fileChannel 下载数据写入的文件
+     * @param end         从文件开头连续写入的数据结束位置
+     */
+    void catchUp(FileChannel fileChannel, long end) throws IOException {
+        synchronized (this) {
+            if (end <= mPosition) return;
+        }
+        ByteBuffer buffer = ByteBufferPool.getInstance().acquire();
+        try {
+            synchronized (this) {
+                while (mPosition < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - mPosition));
+                    int count = fileChannel.read(buffer, mPosition);
+                    if (count <= 0) throw new IOException("读取下载文件失败, 位置: " + mPosition);
+                    buffer.flip();
+                    mMessageDigest.update(buffer);
+                    mPosition += count;
+                }
+            }
+        } finally {
+            ByteBufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * 清空已计算的摘要, 重新下载时调用
+     */
+    synchronized void reset() {
+        mMessageDigest.reset();
+        mPosition = 0;
+    }
+
+    /**
+     * @param length 文件总大小
+     * @return 文件的摘要(十六进制), 还没有计算到文件末尾时返回null
+     */
+    synchronized String digest(long length) {
+        if (mPosition != length) return null;
+        byte[] bytes = mMessageDigest.digest();
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param digest 计算得到的摘要
+     * @return 摘要是否与期望的摘要一致, 没有期望的摘要时返回true
+     */
+    boolean matches(String digest) {
+        return mExpectedDigest == null || mExpectedDigest.equalsIgnoreCase(digest);
+    }
+}
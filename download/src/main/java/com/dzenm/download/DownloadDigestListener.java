@@ -0,0 +1,19 @@
+package com.dzenm.download;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 需要获取下载文件摘要的下载回调, 通过 {@link DownloadManager#setDigest(String, String)} 设置摘要算法后,
+ * 下载成功时回调 {@link #onSuccess(String, String)}, 不再回调 {@link #onSuccess(String)}
+ */
+public interface DownloadDigestListener extends DownloadListener {
+
+    /**
+     * 下载文件成功并且摘要校验通过
+     *
+     * @param filePath 下载文件路径
+     * @param digest   下载文件的摘要(十六进制小写), 没有设置摘要算法时为null
+     */
+    void onSuccess(@NonNull String filePath, @Nullable String digest);
+}
@@ -0,0 +1,429 @@
+package com.dzenm.download;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 下载断点记录, 保存在下载文件旁边的 *.journal 文件中, 记录文件的总大小、校验信息(ETag/Last-Modified)
+ * 以及已经写入磁盘的字节区间. 只有写入记录的区间才认为是有效数据, 进程被杀死时文件末尾可能写入了一半的数据,
+ * 重新下载时只请求记录之外缺失的区间.
+ * <p>
+ * 记录文件按 {@link DownloadConfig#getJournalInterval()} 的间隔写入, 写入前先将下载文件的数据同步到磁盘,
+ * 记录文件先写入临时文件再重命名, 保证任何时候读取到的记录都是完整的.
+ * <p>
+ * 下载完成后记录标记为已完成并继续保留校验信息, 再次下载同一个文件时使用条件请求确认服务器文件是否改变
+ */
+class DownloadJournal {
+
+    private static final String TAG = DownloadJournal.class.getSimpleName();
+
+    static final String SUFFIX = ".journal";
+
+    private static final String MAGIC = "DownloadJournal";
+    private static final int VERSION = 1;
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_RANGE = "range";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_DIGEST = "digest";
+
+    /**
+     * 文件已下载完成的状态, 记录中只有校验信息有效
+     */
+    private static final String STATE_COMPLETED = "completed";
+
+    /**
+     * 记录文件
+     */
+    private final File mFile;
+
+    /**
+     * 下载数据写入的文件
+     */
+    private final File mDataFile;
+
+    private final String mUrl;
+    private long mLength = -1;
+    private String mETag;
+    private String mLastModified;
+    private boolean isFileCompleted = false;
+
+    /**
+     * 下载完成时校验通过的摘要算法和摘要(十六进制小写), 再次使用已下载的文件时不需要重新计算
+     */
+    private String mDigestAlgorithm;
+    private String mDigest;
+
+    /**
+     * 已写入的字节区间, key为起始位置(包含), value为结束位置(不包含), 相邻的区间会合并
+     */
+    private final TreeMap<Long, Long> mRanges = new TreeMap<>();
+
+    /**
+     * 写入记录文件时加锁, 多个分段同时到达写入时间时只有一个分段写入
+     */
+    private final ReentrantLock mFlushLock = new ReentrantLock();
+    private volatile long mLastFlushTime = 0;
+
+    DownloadJournal(File file, File dataFile, String url) {
+        mFile = file;
+        mDataFile = dataFile;
+        mUrl = url;
+    }
+
+    /**
+     * 读取断点记录
+     *
+     * @param file     记录文件
+     * @param dataFile 下载数据写入的文件
+     * @param url      下载地址, 与记录中的下载地址不一致时记录无效
+     * @return 断点记录, 记录不存在、已损坏、文件已下载完成或者不可用于断点续传时返回null
+     */
+    static DownloadJournal load(File file, File dataFile, String url) {
+        DownloadJournal journal = read(file, dataFile, url);
+        return journal == null || journal.isFileCompleted ? null : journal;
+    }
+
+    /**
+     * 读取已下载完成的文件的记录
+     *
+     * @param file         记录文件
+     * @param downloadFile 下载完成的文件
+     * @param url          下载地址, 与记录中的下载地址不一致时记录无效
+     * @return 文件的记录, 记录不存在、没有下载完成或者文件大小与记录不一致时返回null
+     */
+    static DownloadJournal loadCompleted(File file, File downloadFile, String url) {
+        DownloadJournal journal = read(file, downloadFile, url);
+        if (journal == null || !journal.isFileCompleted) return null;
+        return downloadFile.length() == journal.mLength ? journal : null;
+    }
+
+    private static DownloadJournal read(File file, File dataFile, String url) {
+        if (!file.exists() || !dataFile.exists()) return null;
+        DownloadJournal journal = new DownloadJournal(file, dataFile, url);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"))) {
+            if (!(MAGIC + " " + VERSION).equals(reader.readLine())) return null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf('=');
+                if (index <= 0) continue;
+                String key = line.substring(0, index), value = line.substring(index + 1);
+                switch (key) {
+                    case KEY_URL:
+                        if (!value.equals(url)) return null;
+                        break;
+                    case KEY_LENGTH:
+                        journal.mLength = Long.parseLong(value);
+                        break;
+                    case KEY_ETAG:
+                        journal.mETag = value;
+                        break;
+                    case KEY_LAST_MODIFIED:
+                        journal.mLastModified = value;
+                        break;
+                    case KEY_STATE:
+                        journal.isFileCompleted = STATE_COMPLETED.equals(value);
+                        break;
+                    case KEY_DIGEST:
+                        int colon = value.indexOf(':');
+                        journal.mDigestAlgorithm = value.substring(0, colon);
+                        journal.mDigest = value.substring(colon + 1);
+                        break;
+                    case KEY_RANGE:
+                        int separator = value.indexOf('-');
+                        journal.addRange(Long.parseLong(value.substring(0, separator)),
+                                Long.parseLong(value.substring(separator + 1)));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "读取断点记录失败: " + file.getAbsolutePath(), e);
+            return null;
+        }
+        return journal.mLength > 0 ? journal : null;
+    }
+
+    /**
+     * 设置文件信息, 第一次请求得到服务器的响应后调用
+     *
+     * @param length       文件总大小
+     * @param eTag         服务器返回的ETag
+     * @param lastModified 服务器返回的Last-Modified
+     */
+    synchronized void init(long length, String eTag, String lastModified) {
+        mLength = length;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @param length 文件总大小, 服务器没有返回文件大小时, 数据读取完成后设置
+     */
+    synchronized void setLength(long length) {
+        mLength = length;
+    }
+
+    /**
+     * 清空文件信息和已写入的字节区间, 服务器文件已改变或者不支持断点续传时重新下载
+     */
+    synchronized void reset() {
+        mLength = -1;
+        mETag = null;
+        mLastModified = null;
+        mRanges.clear();
+    }
+
+    /**
+     * @return 文件总大小, 未知时返回-1
+     */
+    synchronized long getLength() {
+        return mLength;
+    }
+
+    synchronized String getETag() {
+        return mETag;
+    }
+
+    synchronized String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @param algorithm 摘要算法
+     * @return 下载完成时保存的该算法的摘要, 没有保存或者算法不同时返回null
+     */
+    synchronized String getDigest(String algorithm) {
+        return algorithm != null && algorithm.equalsIgnoreCase(mDigestAlgorithm) ? mDigest : null;
+    }
+
+    /**
+     * 记录已经写入下载文件的字节区间
+     *
+     * @param start 起始位置(包含)
+     * @param end   结束位置(不包含)
+     */
+    synchronized void markCompleted(long start, long end) {
+        addRange(start, end);
+    }
+
+    /**
+     * @return 已写入的字节数
+     */
+    synchronized long getCompletedSize() {
+        long size = 0;
+        for (Map.Entry<Long, Long> entry : mRanges.entrySet()) {
+            size += entry.getValue() - entry.getKey();
+        }
+        return size;
+    }
+
+    /**
+     * @return 从文件开头连续写入的字节数
+     */
+    synchronized long getContiguousLength() {
+        Long end = mRanges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    /**
+     * @return 文件是否已经全部写入
+     */
+    synchronized boolean isCompleted() {
+        return mLength > 0 && getCompletedSize() == mLength;
+    }
+
+    /**
+     * @return 还没有写入的字节区间, 每个区间为[起始位置(包含), 结束位置(不包含)]
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> entry : mRanges.entrySet()) {
+            if (entry.getKey() > position) missing.add(new long[]{position, entry.getKey()});
+            position = Math.max(position, entry.getValue());
+        }
+        if (position < mLength) missing.add(new long[]{position, mLength});
+        return missing;
+    }
+
+    /**
+     * 距离上一次写入超过间隔时间时写入记录文件, 在下载线程中调用, 其它线程正在写入时直接返回
+     */
+    void flushIfNeeded() {
+        if (SystemClock.uptimeMillis() - mLastFlushTime < DownloadConfig.getJournalInterval()) return;
+        if (!mFlushLock.tryLock()) return;
+        try {
+            flushLocked();
+        } finally {
+            mFlushLock.unlock();
+        }
+    }
+
+    /**
+     * 立即写入记录文件, 下载停止或者出错时调用
+     */
+    void flush() {
+        mFlushLock.lock();
+        try {
+            flushLocked();
+        } finally {
+            mFlushLock.unlock();
+        }
+    }
+
+    /**
+     * 下载完成并重命名后调用, 将记录标记为已完成, 只保留文件大小、校验信息和校验通过的摘要.
+     * 服务器没有返回ETag和Last-Modified时无法使用条件请求, 直接删除记录文件
+     *
+     * @param downloadFile    下载完成的文件
+     * @param digestAlgorithm 摘要算法, 没有计算摘要时为null
+     * @param digest          校验通过的摘要, 没有计算摘要时为null
+     */
+    void saveCompleted(File downloadFile, String digestAlgorithm, String digest) {
+        mFlushLock.lock();
+        try {
+            String content;
+            synchronized (this) {
+                if (TextUtils.isEmpty(mETag) && TextUtils.isEmpty(mLastModified)) {
+                    content = null;
+                } else {
+                    isFileCompleted = true;
+                    mRanges.clear();
+                    if (digestAlgorithm != null && digest != null) {
+                        mDigestAlgorithm = digestAlgorithm;
+                        mDigest = digest;
+                    }
+                    content = serialize();
+                }
+            }
+            if (content == null) {
+                if (mFile.exists() && !mFile.delete()) {
+                    Log.e(TAG, "删除断点记录失败: " + mFile.getAbsolutePath());
+                }
+                return;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(downloadFile, "r")) {
+                file.getFD().sync();
+                writeRecord(content);
+            } catch (IOException e) {
+                Log.e(TAG, "写入断点记录失败: " + mFile.getAbsolutePath(), e);
+            }
+        } finally {
+            mFlushLock.unlock();
+        }
+    }
+
+    /**
+     * 删除记录文件, 下载完成后调用
+     */
+    void delete() {
+        mFlushLock.lock();
+        try {
+            if (mFile.exists() && !mFile.delete()) {
+                Log.e(TAG, "删除断点记录失败: " + mFile.getAbsolutePath());
+            }
+        } finally {
+            mFlushLock.unlock();
+        }
+    }
+
+    private void flushLocked() {
+        mLastFlushTime = SystemClock.uptimeMillis();
+        String content;
+        synchronized (this) {
+            if (mLength <= 0) return;
+            content = serialize();
+        }
+        try {
+            // 先将已记录区间对应的数据同步到磁盘, 再写入记录, 保证记录中的区间都是有效数据
+            try (RandomAccessFile dataFile = new RandomAccessFile(mDataFile, "rw")) {
+                dataFile.getFD().sync();
+            }
+            writeRecord(content);
+        } catch (IOException e) {
+            Log.e(TAG, "写入断点记录失败: " + mFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * 先写入临时文件再重命名, 读取到的记录文件总是完整的
+     */
+    private void writeRecord(String content) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+            writer.write(content);
+            writer.flush();
+            outputStream.getFD().sync();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            Log.e(TAG, "写入断点记录失败: " + mFile.getAbsolutePath());
+        }
+    }
+
+    private String serialize() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(MAGIC).append(' ').append(VERSION).append('\n');
+        builder.append(KEY_URL).append('=').append(mUrl).append('\n');
+        builder.append(KEY_LENGTH).append('=').append(mLength).append('\n');
+        if (isFileCompleted) {
+            builder.append(KEY_STATE).append('=').append(STATE_COMPLETED).append('\n');
+            if (mDigest != null) {
+                builder.append(KEY_DIGEST).append('=').append(mDigestAlgorithm)
+                        .append(':').append(mDigest).append('\n');
+            }
+        }
+        if (!TextUtils.isEmpty(mETag)) {
+            builder.append(KEY_ETAG).append('=').append(mETag).append('\n');
+        }
+        if (!TextUtils.isEmpty(mLastModified)) {
+            builder.append(KEY_LAST_MODIFIED).append('=').append(mLastModified).append('\n');
+        }
+        for (Map.Entry<Long, Long> entry : mRanges.entrySet()) {
+            builder.append(KEY_RANGE).append('=').append(entry.getKey())
+                    .append('-').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private void addRange(long start, long end) {
+        if (end <= start) return;
+        // 与前面相邻或重叠的区间合并
+        Map.Entry<Long, Long> floor = mRanges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        // 与后面相邻或重叠的区间合并
+        Map.Entry<Long, Long> next = mRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mRanges.remove(next.getKey());
+            next = mRanges.ceilingEntry(start);
+        }
+        mRanges.put(start, end);
+    }
+}
@@ -1,10 +1,39 @@
 package com.dzenm.download;
 
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.text.TextUtils;
 
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 下载服务的客户端, 绑定 {@link DownloadService} 后通过Messenger注册下载回调,
+ * 下载进度由服务合并后批量发送, 不再通过系统广播. 与服务在同一个进程时直接向服务注册下载回调,
+ * 下载事件不需要序列化为消息. 无法绑定服务时注册广播接收下载事件, 仍然继承BroadcastReceiver
+ */
 public class DownloadManager extends BroadcastReceiver {
 
     public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
@@ -13,15 +42,76 @@ public class DownloadManager extends BroadcastReceiver {
 
     public static final String TOTAL_VALUE = "total_value";
     public static final String CURRENT_VALUE = "current_value";
+
+    /**
+     * 下载进度广播中平滑后的下载速度(字节/秒)
+     */
+    public static final String BYTES_PER_SECOND = "bytes_per_second";
     public static final String STAtUS_SUCCESS = "status_success";
     public static final String STATUS_FAILED = "status_failed";
 
+    /**
+     * 下载成功广播中的文件摘要
+     */
+    public static final String DIGEST = "digest";
+
+    /**
+     * 摘要算法 {@link #setDigest(String, String)}
+     */
+    public static final String DIGEST_SHA256 = "SHA-256";
+    public static final String DIGEST_MD5 = "MD5";
+
+    /**
+     * 后台下载的优先级, 没有空闲线程时会被高优先级的任务暂停
+     */
+    public static final int PRIORITY_BACKGROUND = 0;
+
+    /**
+     * 默认的下载优先级
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * 高优先级下载, 例如升级的APK, 没有空闲线程时会暂停低优先级的任务先下载
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    @IntDef({PRIORITY_BACKGROUND, PRIORITY_NORMAL, PRIORITY_HIGH})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Priority {
+    }
+
     private Context mContext;
     private String mUrl;
     private String mFilePath;
     private long mDownloadId;
+    private int mSegmentCount;
+    private long mMaxBytesPerSecond;
+    private String mDigestAlgorithm;
+    private String mExpectedDigest;
+    private String mVersion;
+    private @Priority
+    int mPriority = PRIORITY_NORMAL;
     private boolean mThreadFlag = false;
     private DownloadListener mDownloadListener;
+    private Executor mCallbackExecutor;
+
+    /**
+     * 下载服务的Messenger, 服务在其它进程时绑定成功后不为null
+     */
+    private Messenger mService;
+
+    /**
+     * 下载服务对象, 服务在同一个进程时绑定成功后不为null
+     */
+    private DownloadService mLocalService;
+    private boolean isBound = false;
+    private boolean isServiceStarted = false;
+
+    /**
+     * 无法绑定服务时是否已经注册了下载事件的广播
+     */
+    private boolean isReceiverRegistered = false;
 
     public DownloadManager(Context context) {
         mContext = context;
@@ -37,66 +127,410 @@ public class DownloadManager extends BroadcastReceiver {
         return this;
     }
 
+    /**
+     * @param segmentCount 分段下载数量, 小于等于0时使用全局配置 {@link DownloadConfig#setSegmentCount(int)}
+     * @return this
+     */
+    public DownloadManager setSegmentCount(int segmentCount) {
+        this.mSegmentCount = segmentCount;
+        return this;
+    }
+
+    /**
+     * @param priority 下载任务的优先级
+     * @return this
+     */
+    public DownloadManager setPriority(@Priority int priority) {
+        this.mPriority = priority;
+        return this;
+    }
+
+    /**
+     * 设置当前任务的速度上限, 开始下载后调用时正在下载的任务立即按新的速度下载,
+     * 所有任务的总速度上限通过 {@link DownloadConfig#setMaxBytesPerSecond(long)} 设置
+     *
+     * @param maxBytesPerSecond 每秒最多下载的字节数, 小于等于0表示不限速
+     * @return this
+     */
+    public DownloadManager setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.mMaxBytesPerSecond = maxBytesPerSecond;
+        if (mLocalService != null) {
+            mLocalService.setMaxBytesPerSecond(mDownloadId, maxBytesPerSecond);
+        } else if (mService != null) {
+            Bundle data = new Bundle();
+            data.putLong(DownloadService.INTENT_MAX_BYTES_PER_SECOND, maxBytesPerSecond);
+            sendToService(DownloadService.MSG_SET_MAX_BYTES_PER_SECOND, data);
+        }
+        return this;
+    }
+
+    /**
+     * 下载过程中计算文件的摘要, 不需要下载完成后再读取一遍文件, 与期望的摘要不一致时下载失败.
+     * 下载回调为 {@link DownloadDigestListener} 时, 下载成功后回调计算得到的摘要
+     *
+     * @param algorithm      摘要算法 {@link #DIGEST_SHA256} 或 {@link #DIGEST_MD5}
+     * @param expectedDigest 期望的摘要(十六进制, 不区分大小写), 为null时只计算摘要不校验
+     * @return this
+     */
+    public DownloadManager setDigest(String algorithm, @Nullable String expectedDigest) {
+        this.mDigestAlgorithm = algorithm;
+        this.mExpectedDigest = expectedDigest;
+        return this;
+    }
+
+    /**
+     * 设置文件的版本, 与URL一起作为下载完成的文件缓存的key {@link DownloadConfig#setArtifactCache(ArtifactCache)},
+     * 相同URL和版本的文件已经下载过时直接使用缓存的文件. 没有设置版本时使用期望的摘要作为缓存的key,
+     * 两者都没有设置时不使用缓存
+     *
+     * @param version 文件的版本, 例如APK的版本号
+     * @return this
+     */
+    public DownloadManager setVersion(@Nullable String version) {
+        this.mVersion = version;
+        return this;
+    }
+
     public DownloadManager setDownloadListener(DownloadListener listener) {
         this.mDownloadListener = listener;
         return this;
     }
 
+    /**
+     * 与服务在同一个进程时执行下载回调的线程, 服务在其它进程时下载回调始终在主线程执行
+     *
+     * @param executor 执行下载回调的线程, 为null时在主线程回调
+     * @return this
+     */
+    public DownloadManager setCallbackExecutor(@Nullable Executor executor) {
+        this.mCallbackExecutor = executor;
+        return this;
+    }
+
     public long start() {
         if (!mThreadFlag) {
-            mDownloadId = System.currentTimeMillis();
+            mDownloadId = DownloadTaskRegistry.nextId();
             mThreadFlag = true;
-            registerDownloadBroadcast();
-            Intent downloadServices = new Intent(mContext, DownloadService.class);
-            downloadServices.putExtra(DownloadService.INTENT_DOWNLOAD_ID, mDownloadId);
-            downloadServices.putExtra(DownloadService.INTENT_FILE_PATH, mFilePath);
-            downloadServices.putExtra(DownloadService.INTENT_URL, mUrl);
-            mContext.startService(downloadServices);
+            isServiceStarted = false;
+            // 先绑定服务注册下载回调, 连接成功后再启动下载, 保证不会错过下载事件
+            Intent intent = new Intent(mContext, DownloadService.class);
+            if (isServiceInSameProcess()) {
+                intent.setAction(DownloadService.ACTION_BIND_LOCAL);
+            }
+            isBound = mContext.bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
+            if (!isBound) {
+                // 无法绑定服务时服务通过广播发送下载事件
+                registerDownloadBroadcast();
+                startDownloadService();
+            }
         }
         return mDownloadId;
     }
 
+    /**
+     * 获取当前任务的下载指标, 所有下载的总指标通过 {@link DownloadMetrics#getTotal()} 获取,
+     * 下载结束时的指标也可以通过 {@link DownloadConfig#setMetricsListener(DownloadMetrics.Listener)} 接收
+     *
+     * @return 下载指标的快照, 下载服务在其它进程或者还没有绑定成功时返回null
+     */
+    @Nullable
+    public DownloadMetrics.Snapshot getMetrics() {
+        return mLocalService == null ? null : mLocalService.getMetrics(mDownloadId);
+    }
+
+    /**
+     * @return 当前任务最近一次的下载进度, 包含平滑后的速度和剩余时间,
+     * 下载服务在其它进程、还没有绑定成功或者还没有进度时返回null
+     */
+    @Nullable
+    public DownloadProgress getProgress() {
+        return mLocalService == null ? null : mLocalService.getProgress(mDownloadId);
+    }
+
+    /**
+     * @return 下载服务中所有未结束任务合并后的进度, 下载服务在其它进程、还没有绑定成功或者没有正在下载的任务时返回null
+     */
+    @Nullable
+    public DownloadProgress getTotalProgress() {
+        return mLocalService == null ? null : mLocalService.getTotalProgress();
+    }
+
     public void stop() {
         if (mThreadFlag) {
             mThreadFlag = false;
-            Intent intent = new Intent(DownloadService.ACTION_DOWNLOAD_PAUSE);
-            intent.putExtra(DownloadService.INTENT_DOWNLOAD_ID, mDownloadId);
-            mContext.sendBroadcast(intent);
+            if (mLocalService != null) {
+                mLocalService.pauseDownloadTask(mDownloadId);
+            } else if (mService != null) {
+                sendToService(DownloadService.MSG_PAUSE);
+            } else {
+                Intent intent = new Intent(DownloadService.ACTION_DOWNLOAD_PAUSE);
+                intent.putExtra(DownloadService.INTENT_DOWNLOAD_ID, mDownloadId);
+                mContext.sendBroadcast(intent);
+            }
+            unbindDownloadService();
             unregisterDownloadBroadcast();
         }
     }
 
+    /**
+     * 接收无法绑定服务时下载服务发送的广播, 只处理当前的下载ID
+     */
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
-        if (action != null) {
-            switch (action) {
-                case ACTION_DOWNLOAD_PROGRESS:
-                    long totalValue = intent.getLongExtra(TOTAL_VALUE, 0);
-                    long currentValue = intent.getLongExtra(CURRENT_VALUE, 0);
-                    mDownloadListener.onProgress(totalValue, currentValue);
-                    break;
-                case ACTION_DOWNLOAD_SUCCESS:
-                    String filePath = intent.getStringExtra(STAtUS_SUCCESS);
-                    mDownloadListener.onSuccess(filePath);
-                    break;
-                case ACTION_DOWNLOAD_FAILED:
-                    String errorMsg = intent.getStringExtra(STATUS_FAILED);
-                    mDownloadListener.onError(errorMsg);
-                    break;
-            }
+        if (action == null || intent.getLongExtra(DownloadService.INTENT_DOWNLOAD_ID, -1) != mDownloadId) return;
+        switch (action) {
+            case ACTION_DOWNLOAD_PROGRESS:
+                notifyProgress(new DownloadProgress(intent.getLongExtra(TOTAL_VALUE, 0),
+                        intent.getLongExtra(CURRENT_VALUE, 0), intent.getLongExtra(BYTES_PER_SECOND, 0)));
+                break;
+            case ACTION_DOWNLOAD_SUCCESS:
+                finish();
+                notifySuccess(intent.getStringExtra(STAtUS_SUCCESS), intent.getStringExtra(DIGEST));
+                break;
+            case ACTION_DOWNLOAD_FAILED:
+                finish();
+                if (mDownloadListener != null) {
+                    mDownloadListener.onError(intent.getStringExtra(STATUS_FAILED));
+                }
+                break;
+            default:
+                break;
         }
     }
 
     private void registerDownloadBroadcast() {
+        if (isReceiverRegistered) return;
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(ACTION_DOWNLOAD_SUCCESS);
         intentFilter.addAction(ACTION_DOWNLOAD_FAILED);
         mContext.registerReceiver(this, intentFilter);
+        isReceiverRegistered = true;
     }
 
     private void unregisterDownloadBroadcast() {
+        if (!isReceiverRegistered) return;
         mContext.unregisterReceiver(this);
+        isReceiverRegistered = false;
+    }
+
+    private void startDownloadService() {
+        if (isServiceStarted) return;
+        isServiceStarted = true;
+        Intent downloadServices = new Intent(mContext, DownloadService.class);
+        downloadServices.putExtra(DownloadService.INTENT_DOWNLOAD_ID, mDownloadId);
+        downloadServices.putExtra(DownloadService.INTENT_FILE_PATH, mFilePath);
+        downloadServices.putExtra(DownloadService.INTENT_URL, mUrl);
+        downloadServices.putExtra(DownloadService.INTENT_SEGMENT_COUNT, mSegmentCount);
+        downloadServices.putExtra(DownloadService.INTENT_PRIORITY, mPriority);
+        downloadServices.putExtra(DownloadService.INTENT_MAX_BYTES_PER_SECOND, mMaxBytesPerSecond);
+        downloadServices.putExtra(DownloadService.INTENT_DIGEST_ALGORITHM, mDigestAlgorithm);
+        downloadServices.putExtra(DownloadService.INTENT_EXPECTED_DIGEST, mExpectedDigest);
+        downloadServices.putExtra(DownloadService.INTENT_VERSION, mVersion);
+        mContext.startService(downloadServices);
+    }
+
+    /**
+     * 发送消息给下载服务, 消息中携带当前的下载ID
+     *
+     * @param what 消息类型
+     */
+    private void sendToService(int what) {
+        sendToService(what, new Bundle());
+    }
+
+    /**
+     * 发送消息给下载服务, 消息中携带当前的下载ID和附加的数据
+     *
+     * @param what 消息类型
+     * @param data 附加的数据
+     */
+    private void sendToService(int what, Bundle data) {
+        if (mService == null) return;
+        Message message = Message.obtain(null, what);
+        data.putLong(DownloadService.INTENT_DOWNLOAD_ID, mDownloadId);
+        message.setData(data);
+        message.replyTo = mClientMessenger;
+        try {
+            mService.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void unbindDownloadService() {
+        if (isBound) {
+            if (mLocalService != null) {
+                mLocalService.unregisterLocalListener(mDownloadId, mLocalListener);
+            } else {
+                sendToService(DownloadService.MSG_UNREGISTER_CLIENT);
+            }
+            mContext.unbindService(mServiceConnection);
+            isBound = false;
+            mService = null;
+            mLocalService = null;
+        }
+    }
+
+    /**
+     * @return 下载服务是否声明在当前进程中
+     */
+    private boolean isServiceInSameProcess() {
+        try {
+            ServiceInfo serviceInfo = mContext.getPackageManager().getServiceInfo(
+                    new ComponentName(mContext, DownloadService.class), 0);
+            return TextUtils.equals(serviceInfo.processName, getProcessName());
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private String getProcessName() {
+        ActivityManager activityManager = (ActivityManager) mContext.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        if (activityManager == null) return null;
+        List<ActivityManager.RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+        if (processes == null) return null;
+        int pid = Process.myPid();
+        for (ActivityManager.RunningAppProcessInfo process : processes) {
+            if (process.pid == pid) return process.processName;
+        }
+        return null;
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            if (service instanceof DownloadService.LocalBinder) {
+                // 同一个进程, 直接注册下载回调
+                mLocalService = ((DownloadService.LocalBinder) service).getService();
+                mLocalService.registerLocalListener(mDownloadId, mLocalListener, mCallbackExecutor);
+            } else {
+                mService = new Messenger(service);
+                sendToService(DownloadService.MSG_REGISTER_CLIENT);
+            }
+            startDownloadService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+            mLocalService = null;
+        }
+    };
+
+    /**
+     * 同一个进程内注册到服务的下载回调, 下载结束后取消绑定服务
+     */
+    private final DownloadListener mLocalListener = new LocalListener();
+
+    /**
+     * 同时接收文件摘要和包含速度的进度, 再按客户端设置的下载回调类型回调
+     */
+    private class LocalListener implements DownloadDigestListener, DownloadProgressListener {
+
+        @Override
+        public void onProgress(long totalValue, long currentValue) {
+            onProgress(new DownloadProgress(totalValue, currentValue, 0));
+        }
+
+        @Override
+        public void onProgress(@NonNull DownloadProgress progress) {
+            notifyProgress(progress);
+        }
+
+        @Override
+        public void onError(@Nullable String errorMsg) {
+            finish();
+            if (mDownloadListener != null) {
+                mDownloadListener.onError(errorMsg);
+            }
+        }
+
+        @Override
+        public void onSuccess(@NonNull String filePath) {
+            onSuccess(filePath, null);
+        }
+
+        @Override
+        public void onSuccess(@NonNull String filePath, @Nullable String digest) {
+            finish();
+            notifySuccess(filePath, digest);
+        }
+    }
+
+    /**
+     * 接收下载服务发送的下载事件, 进度消息中包含多个下载任务的进度, 只处理当前的下载ID
+     */
+    @SuppressLint("HandlerLeak")
+    private final Handler mClientHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            Bundle data = msg.getData();
+            switch (msg.what) {
+                case DownloadListener.DOWNLOAD_PROGRESS:
+                    long[] downloadIds = data.getLongArray(DownloadService.KEY_DOWNLOAD_IDS);
+                    long[] totalValues = data.getLongArray(DownloadService.KEY_TOTAL_VALUES);
+                    long[] currentValues = data.getLongArray(DownloadService.KEY_CURRENT_VALUES);
+                    long[] bytesPerSecond = data.getLongArray(DownloadService.KEY_BYTES_PER_SECOND);
+                    if (downloadIds == null || totalValues == null || currentValues == null) break;
+                    for (int i = 0; i < downloadIds.length; i++) {
+                        if (downloadIds[i] == mDownloadId) {
+                            notifyProgress(new DownloadProgress(totalValues[i], currentValues[i],
+                                    bytesPerSecond == null ? 0 : bytesPerSecond[i]));
+                        }
+                    }
+                    break;
+                case DownloadListener.DOWNLOAD_SUCCESS:
+                    if (data.getLong(DownloadService.INTENT_DOWNLOAD_ID) != mDownloadId) break;
+                    finish();
+                    notifySuccess(data.getString(STAtUS_SUCCESS), data.getString(DIGEST));
+                    break;
+                case DownloadListener.DOWNLOAD_FAILED:
+                    if (data.getLong(DownloadService.INTENT_DOWNLOAD_ID) != mDownloadId) break;
+                    finish();
+                    if (mDownloadListener != null) {
+                        mDownloadListener.onError(data.getString(STATUS_FAILED));
+                    }
+                    break;
+                default:
+                    super.handleMessage(msg);
+                    break;
+            }
+        }
+    };
+
+    private final Messenger mClientMessenger = new Messenger(mClientHandler);
+
+    /**
+     * 回调下载进度, 下载回调为 {@link DownloadProgressListener} 时回调包含速度和剩余时间的进度
+     */
+    private void notifyProgress(DownloadProgress progress) {
+        if (mDownloadListener instanceof DownloadProgressListener) {
+            ((DownloadProgressListener) mDownloadListener).onProgress(progress);
+        } else if (mDownloadListener != null) {
+            mDownloadListener.onProgress(progress.getTotalSize(), progress.getDownloadedSize());
+        }
+    }
+
+    /**
+     * 回调下载成功, 下载回调为 {@link DownloadDigestListener} 时同时回调文件摘要
+     */
+    private void notifySuccess(String filePath, String digest) {
+        if (mDownloadListener instanceof DownloadDigestListener) {
+            ((DownloadDigestListener) mDownloadListener).onSuccess(filePath, digest);
+        } else if (mDownloadListener != null) {
+            mDownloadListener.onSuccess(filePath);
+        }
+    }
+
+    /**
+     * 下载结束后取消绑定服务
+     */
+    private void finish() {
+        mThreadFlag = false;
+        unbindDownloadService();
+        unregisterDownloadBroadcast();
     }
 }
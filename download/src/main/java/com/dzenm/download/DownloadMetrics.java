@@ -0,0 +1,414 @@
+package com.dzenm.download;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载指标, 每次下载一个, 同时累加到进程内所有下载的总指标 {@link #getTotal()}.
+ * 记录只使用原子计数, 吞吐量每 {@link #SAMPLE_INTERVAL} 最多采样一次, 可以在正式环境中一直开启.
+ * 通过 {@link #snapshot()} 获取某一时刻的不可变快照, 下载结束时回调 {@link DownloadConfig#getMetricsListener()}.
+ * 新建连接数量和DNS、连接、TLS各阶段耗时只有 {@link PooledHttpTransport} 会记录, 默认的 {@link UrlConnectionTransport}
+ * 不记录时这些指标返回-1 {@link Snapshot#isPhaseTimingAvailable()}, 首字节耗时为发送请求到读取到响应头的耗时
+ */
+public final class DownloadMetrics {
+
+    /**
+     * 吞吐量的采样间隔(纳秒)和最多保存的采样数量
+     */
+    private static final long SAMPLE_INTERVAL = 1000 * 1000000L;
+    private static final int MAX_SAMPLES = 60;
+
+    private static final DownloadMetrics TOTAL = new DownloadMetrics(null, null);
+
+    public interface Listener {
+
+        /**
+         * 下载结束(成功、失败或者暂停), 在下载线程回调, 不能执行耗时操作
+         *
+         * @param snapshot 本次下载的指标
+         */
+        void onMetrics(@NonNull Snapshot snapshot);
+    }
+
+    private final String mUrl;
+    private final DownloadMetrics mParent;
+    private final long mStartTime = System.nanoTime();
+    private volatile long mEndTime = 0;
+
+    private final AtomicLong mQueueWaitTime = new AtomicLong();
+
+    /**
+     * 请求数量、新建的连接数量、复用连接的次数和重试次数
+     */
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mReusedCount = new AtomicInteger();
+    private final AtomicInteger mRetryCount = new AtomicInteger();
+
+    /**
+     * 传输层记录了各阶段耗时的请求数量
+     */
+    private final AtomicInteger mTimedRequestCount = new AtomicInteger();
+
+    /**
+     * 所有请求的DNS解析、TCP连接、TLS握手和首字节的总耗时(纳秒)
+     */
+    private final AtomicLong mDnsTime = new AtomicLong();
+    private final AtomicLong mConnectTime = new AtomicLong();
+    private final AtomicLong mTlsTime = new AtomicLong();
+    private final AtomicLong mTimeToFirstByte = new AtomicLong();
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    /**
+     * 读取等待写入和写入等待读取的总时间(毫秒)
+     */
+    private final AtomicLong mReaderStallTime = new AtomicLong();
+    private final AtomicLong mWriterStallTime = new AtomicLong();
+
+    private volatile int mBufferSize = 0;
+    private volatile int mPeakBufferSize = 0;
+
+    /**
+     * 吞吐量采样, 循环保存采样的时间(纳秒)和当时已写入的字节数
+     */
+    private final long[] mSampleTimes = new long[MAX_SAMPLES + 1];
+    private final long[] mSampleBytes = new long[MAX_SAMPLES + 1];
+    private int mSampleCount = 0;
+    private volatile long mNextSampleTime;
+
+    DownloadMetrics(String url) {
+        this(url, TOTAL);
+    }
+
+    private DownloadMetrics(String url, DownloadMetrics parent) {
+        mUrl = url;
+        mParent = parent;
+        mSampleTimes[0] = mStartTime;
+        mSampleCount = 1;
+        mNextSampleTime = mStartTime + SAMPLE_INTERVAL;
+    }
+
+    /**
+     * @return 进程启动以来所有下载的总指标
+     */
+    public static DownloadMetrics getTotal() {
+        return TOTAL;
+    }
+
+    void recordQueueWait(long millis) {
+        mQueueWaitTime.addAndGet(millis);
+        if (mParent != null) mParent.recordQueueWait(millis);
+    }
+
+    /**
+     * 记录一次请求
+     *
+     * @param timing  传输层记录的各阶段耗时, 不支持时为null
+     * @param elapsed 从发送请求到返回响应的耗时(纳秒), timing为null时作为首字节耗时
+     */
+    void recordRequest(@Nullable RequestTiming timing, long elapsed) {
+        mRequestCount.incrementAndGet();
+        if (timing == null) {
+            mTimeToFirstByte.addAndGet(elapsed);
+        } else {
+            mTimedRequestCount.incrementAndGet();
+            mConnectionCount.addAndGet(timing.mConnectionCount);
+            mReusedCount.addAndGet(timing.mReusedCount);
+            mRetryCount.addAndGet(timing.mRetryCount);
+            mDnsTime.addAndGet(timing.mDnsTime);
+            mConnectTime.addAndGet(timing.mConnectTime);
+            mTlsTime.addAndGet(timing.mTlsTime);
+            mTimeToFirstByte.addAndGet(timing.mTimeToFirstByte);
+        }
+        if (mParent != null) mParent.recordRequest(timing, elapsed);
+    }
+
+    void recordRetry() {
+        mRetryCount.incrementAndGet();
+        if (mParent != null) mParent.recordRetry();
+    }
+
+    void recordBytesRead(long count) {
+        mBytesRead.addAndGet(count);
+        if (mParent != null) mParent.recordBytesRead(count);
+    }
+
+    void recordBytesWritten(long count) {
+        long written = mBytesWritten.addAndGet(count);
+        long now = System.nanoTime();
+        if (now - mNextSampleTime >= 0) sample(now, written);
+        if (mParent != null) mParent.recordBytesWritten(count);
+    }
+
+    void recordStall(long readerStallTime, long writerStallTime) {
+        mReaderStallTime.addAndGet(readerStallTime);
+        mWriterStallTime.addAndGet(writerStallTime);
+        if (mParent != null) mParent.recordStall(readerStallTime, writerStallTime);
+    }
+
+    void recordBufferSize(int size) {
+        mBufferSize = size;
+        if (size > mPeakBufferSize) mPeakBufferSize = size;
+        if (mParent != null) mParent.recordBufferSize(size);
+    }
+
+    void finish() {
+        mEndTime = System.nanoTime();
+        sample(mEndTime, mBytesWritten.get());
+    }
+
+    /**
+     * 保存一个吞吐量采样, 超过采样数量时移除最早的采样
+     */
+    private synchronized void sample(long now, long written) {
+        if (now - mNextSampleTime < 0 && mEndTime == 0) return;
+        mNextSampleTime = now + SAMPLE_INTERVAL;
+        int index = mSampleCount % mSampleTimes.length;
+        mSampleTimes[index] = now;
+        mSampleBytes[index] = written;
+        mSampleCount++;
+    }
+
+    /**
+     * @return 当前指标的不可变快照
+     */
+    public Snapshot snapshot() {
+        long[] throughput;
+        synchronized (this) {
+            int count = Math.min(mSampleCount, mSampleTimes.length);
+            int first = mSampleCount - count;
+            throughput = new long[Math.max(0, count - 1)];
+            for (int i = 0; i < throughput.length; i++) {
+                int from = (first + i) % mSampleTimes.length;
+                int to = (first + i + 1) % mSampleTimes.length;
+                long time = mSampleTimes[to] - mSampleTimes[from];
+                throughput[i] = time <= 0 ? 0 : (mSampleBytes[to] - mSampleBytes[from]) * 1000000000L / time;
+            }
+        }
+        return new Snapshot(this, throughput);
+    }
+
+    /**
+     * 某一时刻的下载指标, 时间单位为毫秒, 吞吐量单位为字节/秒
+     */
+    public static final class Snapshot {
+
+        private final String mUrl;
+        private final boolean isFinished;
+        private final long mElapsedTime;
+        private final long mQueueWaitTime;
+        private final int mRequestCount;
+        private final boolean isPhaseTimingAvailable;
+        private final int mConnectionCount;
+        private final int mReusedConnectionCount;
+        private final int mRetryCount;
+        private final long mDnsTime;
+        private final long mConnectTime;
+        private final long mTlsTime;
+        private final long mTimeToFirstByte;
+        private final long mBytesRead;
+        private final long mBytesWritten;
+        private final long mReaderStallTime;
+        private final long mWriterStallTime;
+        private final int mBufferSize;
+        private final int mPeakBufferSize;
+        private final long[] mThroughputSamples;
+
+        private Snapshot(DownloadMetrics metrics, long[] throughputSamples) {
+            long endTime = metrics.mEndTime;
+            mUrl = metrics.mUrl;
+            isFinished = endTime != 0;
+            mElapsedTime = ((isFinished ? endTime : System.nanoTime()) - metrics.mStartTime) / 1000000;
+            mQueueWaitTime = metrics.mQueueWaitTime.get();
+            mRequestCount = metrics.mRequestCount.get();
+            isPhaseTimingAvailable = metrics.mTimedRequestCount.get() > 0;
+            mConnectionCount = isPhaseTimingAvailable ? metrics.mConnectionCount.get() : -1;
+            mReusedConnectionCount = isPhaseTimingAvailable ? metrics.mReusedCount.get() : -1;
+            mRetryCount = metrics.mRetryCount.get();
+            mDnsTime = isPhaseTimingAvailable ? metrics.mDnsTime.get() / 1000000 : -1;
+            mConnectTime = isPhaseTimingAvailable ? metrics.mConnectTime.get() / 1000000 : -1;
+            mTlsTime = isPhaseTimingAvailable ? metrics.mTlsTime.get() / 1000000 : -1;
+            mTimeToFirstByte = metrics.mTimeToFirstByte.get() / 1000000;
+            mBytesRead = metrics.mBytesRead.get();
+            mBytesWritten = metrics.mBytesWritten.get();
+            mReaderStallTime = metrics.mReaderStallTime.get();
+            mWriterStallTime = metrics.mWriterStallTime.get();
+            mBufferSize = metrics.mBufferSize;
+            mPeakBufferSize = metrics.mPeakBufferSize;
+            mThroughputSamples = throughputSamples;
+        }
+
+        /**
+         * @return 下载地址, 总指标返回null
+         */
+        @Nullable
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * @return 下载是否已经结束
+         */
+        public boolean isFinished() {
+            return isFinished;
+        }
+
+        /**
+         * @return 从开始下载到结束(或者当前)的时间
+         */
+        public long getElapsedTime() {
+            return mElapsedTime;
+        }
+
+        /**
+         * @return 在等待队列中等待的时间, 被高优先级任务暂停后再次等待的时间也包括在内
+         */
+        public long getQueueWaitTime() {
+            return mQueueWaitTime;
+        }
+
+        public int getRequestCount() {
+            return mRequestCount;
+        }
+
+        /**
+         * @return 传输层是否记录了新建连接数量和DNS、连接、TLS各阶段耗时, 不记录时这些指标返回-1.
+         * 只有 {@link PooledHttpTransport} 会记录
+         */
+        public boolean isPhaseTimingAvailable() {
+            return isPhaseTimingAvailable;
+        }
+
+        /**
+         * @return 新建的连接数量, 传输层不记录时为-1
+         */
+        public int getConnectionCount() {
+            return mConnectionCount;
+        }
+
+        /**
+         * @return 复用连接的次数, 传输层不记录时为-1
+         */
+        public int getReusedConnectionCount() {
+            return mReusedConnectionCount;
+        }
+
+        /**
+         * @return 重试次数, 包括复用的连接失效、重定向地址失效和服务器文件改变后重新请求
+         */
+        public int getRetryCount() {
+            return mRetryCount;
+        }
+
+        /**
+         * @return 所有新建连接的DNS解析总耗时, 传输层不记录时为-1
+         */
+        public long getDnsTime() {
+            return mDnsTime;
+        }
+
+        /**
+         * @return 所有新建连接的TCP连接总耗时, 传输层不记录时为-1
+         */
+        public long getConnectTime() {
+            return mConnectTime;
+        }
+
+        /**
+         * @return 所有新建连接的TLS握手总耗时, 传输层不记录时为-1
+         */
+        public long getTlsTime() {
+            return mTlsTime;
+        }
+
+        /**
+         * @return 所有请求从发送请求到读取到响应的总耗时. 传输层不记录各阶段耗时时包括DNS解析、连接和TLS握手,
+         * 并且是读取完响应头的时间 {@link #isPhaseTimingAvailable()}
+         */
+        public long getTimeToFirstByte() {
+            return mTimeToFirstByte;
+        }
+
+        /**
+         * @return 平均每个请求的首字节耗时
+         */
+        public long getAverageTimeToFirstByte() {
+            return mRequestCount == 0 ? 0 : mTimeToFirstByte / mRequestCount;
+        }
+
+        /**
+         * @return 从网络读取的字节数
+         */
+        public long getBytesRead() {
+            return mBytesRead;
+        }
+
+        /**
+         * @return 写入文件的字节数
+         */
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        /**
+         * @return 读取网络数据因为等待写入磁盘而停顿的总时间
+         */
+        public long getReaderStallTime() {
+            return mReaderStallTime;
+        }
+
+        /**
+         * @return 写入磁盘因为等待网络数据而停顿的总时间
+         */
+        public long getWriterStallTime() {
+            return mWriterStallTime;
+        }
+
+        /**
+         * @return 最近一次按吞吐量选择的读取缓冲区大小(字节)
+         */
+        public int getBufferSize() {
+            return mBufferSize;
+        }
+
+        /**
+         * @return 选择过的最大的读取缓冲区大小(字节)
+         */
+        public int getPeakBufferSize() {
+            return mPeakBufferSize;
+        }
+
+        /**
+         * @return 平均吞吐量
+         */
+        public long getAverageThroughput() {
+            return mElapsedTime <= 0 ? 0 : mBytesWritten * 1000 / mElapsedTime;
+        }
+
+        /**
+         * @return 最近的吞吐量采样, 按时间从早到晚排列, 每个采样约1秒
+         */
+        public long[] getThroughputSamples() {
+            return mThroughputSamples.clone();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            String phaseTiming = isPhaseTimingAvailable
+                    ? String.format(Locale.US, "新建连接: %d, 复用连接: %d, DNS: %dms, 连接: %dms, TLS: %dms, 首字节: %dms",
+                    mConnectionCount, mReusedConnectionCount, mDnsTime, mConnectTime, mTlsTime, mTimeToFirstByte)
+                    : String.format(Locale.US, "各阶段耗时: 不支持, 响应头: %dms", mTimeToFirstByte);
+            return String.format(Locale.US, "耗时: %dms, 排队: %dms, 请求: %d, 重试: %d, %s, 读取: %d, 写入: %d, "
+                            + "读取等待: %dms, 写入等待: %dms, 最大缓冲区: %dKB, 平均速度: %dB/s",
+                    mElapsedTime, mQueueWaitTime, mRequestCount, mRetryCount, phaseTiming, mBytesRead, mBytesWritten,
+                    mReaderStallTime, mWriterStallTime, mPeakBufferSize / 1024, getAverageThroughput());
+        }
+    }
+}
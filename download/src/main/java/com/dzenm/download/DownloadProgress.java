@@ -0,0 +1,69 @@
+package com.dzenm.download;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * 下载进度的快照, 由 {@link SpeedEstimator} 在发送进度的一方计算, 包含平滑后的下载速度和剩余时间,
+ * 回调中不需要再根据两次进度自己计算百分比和速度. 创建后不再改变, 可以在任意线程读取
+ */
+public final class DownloadProgress {
+
+    private final long mTotalSize;
+    private final long mDownloadedSize;
+    private final long mBytesPerSecond;
+
+    DownloadProgress(long totalSize, long downloadedSize, long bytesPerSecond) {
+        mTotalSize = totalSize;
+        mDownloadedSize = downloadedSize;
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * @return 文件总大小, 未知时小于等于0
+     */
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * @return 已下载的文件大小
+     */
+    public long getDownloadedSize() {
+        return mDownloadedSize;
+    }
+
+    /**
+     * @return 下载的百分比[0, 100], 文件总大小未知时返回-1
+     */
+    public int getPercent() {
+        if (mTotalSize <= 0) return -1;
+        return (int) Math.min(100, mDownloadedSize * 100 / mTotalSize);
+    }
+
+    /**
+     * @return 平滑后的下载速度(字节/秒), 还没有足够的采样时为0
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @return 按当前速度估算的剩余时间(毫秒), 文件总大小或者速度未知时返回-1
+     */
+    public long getRemainingTime() {
+        if (mTotalSize <= 0) return -1;
+        long remaining = mTotalSize - mDownloadedSize;
+        if (remaining <= 0) return 0;
+        if (mBytesPerSecond <= 0) return -1;
+        return (long) ((double) remaining * 1000 / mBytesPerSecond);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "进度: %d/%d (%d%%), 速度: %dB/s, 剩余: %dms",
+                mDownloadedSize, mTotalSize, getPercent(), mBytesPerSecond, getRemainingTime());
+    }
+}
@@ -0,0 +1,18 @@
+package com.dzenm.download;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 需要下载速度和剩余时间的进度回调, download 和 download_manager 模块共用. 下载回调同时实现该接口时,
+ * 下载进度回调 {@link #onProgress(DownloadProgress)}, 不再回调原来只有文件大小的进度.
+ * 速度由发送进度的一方统一计算, 每次发送进度都会回调, 不只在百分比变化时回调
+ */
+public interface DownloadProgressListener {
+
+    /**
+     * 下载文件进度
+     *
+     * @param progress 包含文件大小、已下载大小、平滑后的速度和剩余时间的进度
+     */
+    void onProgress(@NonNull DownloadProgress progress);
+}
@@ -0,0 +1,292 @@
+package com.dzenm.download;
+
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载任务调度器, 使用固定数量的工作线程执行下载任务.
+ * 同时下载的任务数量不超过 {@link DownloadConfig#getMaxConcurrentDownloads()},
+ * 同一个Host同时下载的任务数量不超过 {@link DownloadConfig#getMaxDownloadsPerHost()},
+ * 等待中的任务按照优先级排序, 优先级相同时先进先出. 没有空闲的线程时, 高优先级的任务(例如升级的APK)
+ * 会暂停正在下载的低优先级任务, 被暂停的任务重新进入等待队列, 之后从已下载的位置继续下载
+ */
+class DownloadScheduler {
+
+    private static final String TAG = DownloadScheduler.class.getSimpleName();
+
+    /**
+     * 工作线程空闲后的存活时间(秒)
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * 等待下载的任务, 按照优先级从高到低, 入队顺序从先到后排序
+     */
+    private final TreeSet<Entry> mPendingEntries = new TreeSet<>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.mPriority != o2.mPriority) {
+                return o1.mPriority > o2.mPriority ? -1 : 1;
+            }
+            return Long.compare(o1.mSequence, o2.mSequence);
+        }
+    });
+
+    /**
+     * 正在下载的任务
+     */
+    private final List<Entry> mRunningEntries = new ArrayList<>();
+
+    /**
+     * 每个Host正在下载的任务数量
+     */
+    private final Map<String, Integer> mHostCounts = new HashMap<>();
+
+    /**
+     * 等待和正在下载的任务数量, 持有锁修改队列后更新, 读取不需要加锁
+     */
+    private volatile int mQueueDepth = 0;
+    private volatile int mActiveCount = 0;
+
+    private long mSequence = 0;
+
+    DownloadScheduler() {
+        int maxConcurrent = DownloadConfig.getMaxConcurrentDownloads();
+        mExecutor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, "DownloadWorker-" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 添加下载任务到等待队列, 有空闲的线程时立即开始下载
+     *
+     * @param task     下载任务
+     * @param priority 下载任务的优先级 {@link DownloadManager.Priority}
+     */
+    synchronized void enqueue(DownloadTask task, @DownloadManager.Priority int priority) {
+        if (findEntry(task) != null) {
+            Log.d(TAG, "下载任务已在队列中: " + task.getUrl());
+            return;
+        }
+        task.markQueued();
+        mPendingEntries.add(new Entry(task, priority, mSequence++));
+        schedule();
+    }
+
+    /**
+     * 取消下载任务, 等待中的任务从队列中移除, 正在下载的任务停止下载
+     *
+     * @param task 下载任务
+     */
+    synchronized void cancel(DownloadTask task) {
+        Iterator<Entry> iterator = mPendingEntries.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mTask == task) {
+                iterator.remove();
+                updateCounts();
+                return;
+            }
+        }
+        for (Entry entry : mRunningEntries) {
+            if (entry.mTask == task) {
+                entry.isPreempted = false;
+                task.stop();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 停止所有下载任务并关闭工作线程
+     */
+    synchronized void shutdown() {
+        mPendingEntries.clear();
+        for (Entry entry : mRunningEntries) {
+            entry.isPreempted = false;
+            entry.mTask.stop();
+        }
+        mExecutor.shutdown();
+        updateCounts();
+    }
+
+    /**
+     * @return 等待下载的任务数量
+     */
+    int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return 正在下载的任务数量
+     */
+    int getActiveCount() {
+        return mActiveCount;
+    }
+
+    private void updateCounts() {
+        mQueueDepth = mPendingEntries.size();
+        mActiveCount = mRunningEntries.size();
+    }
+
+    /**
+     * 从等待队列中按优先级取出可以执行的任务开始下载, 所有线程都在下载时尝试抢占低优先级的任务
+     */
+    private void schedule() {
+        if (mExecutor.isShutdown()) {
+            updateCounts();
+            return;
+        }
+        int maxConcurrent = DownloadConfig.getMaxConcurrentDownloads();
+        resizeExecutor(maxConcurrent);
+
+        int maxPerHost = DownloadConfig.getMaxDownloadsPerHost();
+        Iterator<Entry> iterator = mPendingEntries.iterator();
+        while (mRunningEntries.size() < maxConcurrent && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (getHostCount(entry.mHost) >= maxPerHost) continue;
+            iterator.remove();
+            execute(entry);
+        }
+
+        if (mRunningEntries.size() >= maxConcurrent) {
+            for (Entry entry : mPendingEntries) {
+                if (getHostCount(entry.mHost) < maxPerHost) {
+                    preempt(entry);
+                    break;
+                }
+            }
+        }
+        updateCounts();
+    }
+
+    /**
+     * 暂停一个优先级比等待任务低的正在下载的任务, 被暂停的任务结束后重新进入等待队列
+     *
+     * @param waiting 优先级最高的等待任务
+     */
+    private void preempt(Entry waiting) {
+        Entry victim = null;
+        for (Entry entry : mRunningEntries) {
+            // 已经在暂停中的任务会释放一个线程, 不需要再暂停其它任务
+            if (entry.isPreempted) return;
+            if (entry.mPriority < waiting.mPriority
+                    && (victim == null || entry.mPriority < victim.mPriority)) {
+                victim = entry;
+            }
+        }
+        if (victim != null) {
+            Log.d(TAG, "高优先级任务抢占下载: " + waiting.mTask.getUrl()
+                    + ", 暂停: " + victim.mTask.getUrl());
+            victim.isPreempted = true;
+            victim.mTask.stop();
+        }
+    }
+
+    private void execute(final Entry entry) {
+        mRunningEntries.add(entry);
+        mHostCounts.put(entry.mHost, getHostCount(entry.mHost) + 1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    entry.mTask.start();
+                } finally {
+                    onFinished(entry);
+                }
+            }
+        });
+    }
+
+    private synchronized void onFinished(Entry entry) {
+        mRunningEntries.remove(entry);
+        int hostCount = getHostCount(entry.mHost) - 1;
+        if (hostCount > 0) {
+            mHostCounts.put(entry.mHost, hostCount);
+        } else {
+            mHostCounts.remove(entry.mHost);
+        }
+        // 暂停的同时任务可能已经下载完成或者失败, 只有被停止的任务才重新进入等待队列
+        boolean isPreempted = entry.isPreempted;
+        entry.isPreempted = false;
+        if (isPreempted && entry.mTask.getState() == DownloadTask.STATE_STOPPED) {
+            entry.mTask.clearStopped();
+            entry.mTask.markQueued();
+            mPendingEntries.add(entry);
+        }
+        schedule();
+    }
+
+    /**
+     * 最大并发数修改后调整线程池的大小
+     */
+    private void resizeExecutor(int maxConcurrent) {
+        if (mExecutor.getMaximumPoolSize() == maxConcurrent) return;
+        if (maxConcurrent > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(maxConcurrent);
+            mExecutor.setCorePoolSize(maxConcurrent);
+        } else {
+            mExecutor.setCorePoolSize(maxConcurrent);
+            mExecutor.setMaximumPoolSize(maxConcurrent);
+        }
+    }
+
+    private int getHostCount(String host) {
+        Integer count = mHostCounts.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private Entry findEntry(DownloadTask task) {
+        for (Entry entry : mPendingEntries) {
+            if (entry.mTask == task) return entry;
+        }
+        for (Entry entry : mRunningEntries) {
+            if (entry.mTask == task) return entry;
+        }
+        return null;
+    }
+
+    private static class Entry {
+
+        private final DownloadTask mTask;
+        private final int mPriority;
+        private final long mSequence;
+        private final String mHost;
+
+        /**
+         * 是否被高优先级的任务暂停, 暂停结束后需要重新进入等待队列
+         */
+        private boolean isPreempted = false;
+
+        Entry(DownloadTask task, int priority, long sequence) {
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+            String host = Uri.parse(task.getUrl()).getHost();
+            mHost = host == null ? "" : host;
+        }
+    }
+}
@@ -6,24 +6,33 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Environment;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Messenger;
+import android.os.SystemClock;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 public class DownloadService extends Service {
 
@@ -34,21 +43,133 @@ public class DownloadService extends Service {
      */
     static final String ACTION_DOWNLOAD_PAUSE = "action_download_pause";
 
+    /**
+     * 与服务在同一个进程的客户端绑定服务时使用的Action, 返回 {@link LocalBinder}
+     */
+    static final String ACTION_BIND_LOCAL = "action_bind_local";
+
     static final String INTENT_FILE_PATH = "intent_file_path";
     static final String INTENT_DOWNLOAD_ID = "intent_download_id";
     static final String INTENT_URL = "intent_url";
+    static final String INTENT_SEGMENT_COUNT = "intent_segment_count";
+    static final String INTENT_PRIORITY = "intent_priority";
+    static final String INTENT_MAX_BYTES_PER_SECOND = "intent_max_bytes_per_second";
+    static final String INTENT_DIGEST_ALGORITHM = "intent_digest_algorithm";
+    static final String INTENT_EXPECTED_DIGEST = "intent_expected_digest";
+    static final String INTENT_VERSION = "intent_version";
 
     /**
-     * 下载任务缓存, 服务启动后进行的所有下载任务
+     * 绑定服务的客户端发送给服务的消息, 注册/取消注册下载回调和暂停下载, 消息的数据中携带下载ID
      */
-    private Map<Long, DownloadTask> mDownloadTaskCache = new HashMap<>();
+    static final int MSG_REGISTER_CLIENT = 101;
+    static final int MSG_UNREGISTER_CLIENT = 102;
+    static final int MSG_PAUSE = 103;
+
+    /**
+     * 修改下载任务的速度上限, 消息的数据中携带 {@link #INTENT_MAX_BYTES_PER_SECOND}
+     */
+    static final int MSG_SET_MAX_BYTES_PER_SECOND = 105;
+
+    /**
+     * 合并后的进度消息发送给客户端
+     */
+    private static final int MSG_FLUSH_PROGRESS = 104;
+
+    /**
+     * 移除超过保留时间的已结束任务
+     */
+    private static final int MSG_EVICT_TASKS = 106;
+
+    /**
+     * 批量进度消息中的数据, 分别为下载ID、文件总大小、已下载的文件大小、平滑后的下载速度, 数组下标一一对应
+     */
+    static final String KEY_DOWNLOAD_IDS = "download_ids";
+    static final String KEY_TOTAL_VALUES = "total_values";
+    static final String KEY_CURRENT_VALUES = "current_values";
+    static final String KEY_BYTES_PER_SECOND = "bytes_per_second";
+
+    /**
+     * 下载任务缓存, 可以在任意线程查询, 已结束的任务超过保留时间后移除
+     */
+    private final DownloadTaskRegistry mDownloadTaskRegistry = new DownloadTaskRegistry();
     private DownloadListenerBroadcast mDownloadListenerBroadcast;
 
+    /**
+     * 下载任务调度器, 控制同时下载的任务数量
+     */
+    private DownloadScheduler mDownloadScheduler;
+
+    /**
+     * 绑定服务的客户端注册的下载回调, key为下载ID, 客户端通过Messenger接收下载事件
+     */
+    private final Map<Long, List<Messenger>> mClients = new HashMap<>();
+
+    /**
+     * 同一个进程内的客户端注册的下载回调, key为下载ID, 下载事件直接回调, 不需要序列化为消息.
+     * 客户端可能在回调线程中取消注册, 使用线程安全的集合
+     */
+    private final Map<Long, List<LocalClient>> mLocalClients = new ConcurrentHashMap<>();
+
+    private final LocalBinder mLocalBinder = new LocalBinder();
+
+    /**
+     * 等待合并发送的下载进度, key为下载ID, 同一个任务只保留最新的进度
+     */
+    private final Map<Long, DownloadProgress> mPendingProgress = new LinkedHashMap<>();
+
+    /**
+     * 还在下载的任务对应的startId, 按startId排序. 任务结束后通过 {@link #stopSelfResult(int)}
+     * 释放所有更早的startId, 进程被杀死后只重新传递还在下载的任务的Intent
+     */
+    private final TreeMap<Integer, Long> mRunningStartIds = new TreeMap<>();
+    private int mLastStartId = 0;
+    private int mStoppedStartId = 0;
+
+    /**
+     * 处理客户端发送的消息和合并发送的进度, 运行在主线程
+     */
+    @SuppressLint("HandlerLeak")
+    private final Handler mServiceHandler = new Handler() {
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            Bundle data = msg.peekData();
+            long downloadId = data == null ? -1 : data.getLong(INTENT_DOWNLOAD_ID);
+            switch (msg.what) {
+                case MSG_REGISTER_CLIENT:
+                    if (msg.replyTo != null) registerClient(downloadId, msg.replyTo);
+                    break;
+                case MSG_UNREGISTER_CLIENT:
+                    if (msg.replyTo != null) unregisterClient(downloadId, msg.replyTo);
+                    break;
+                case MSG_PAUSE:
+                    pauseDownloadTask(downloadId);
+                    break;
+                case MSG_SET_MAX_BYTES_PER_SECOND:
+                    setMaxBytesPerSecond(downloadId, data == null ? 0
+                            : data.getLong(INTENT_MAX_BYTES_PER_SECOND));
+                    break;
+                case MSG_FLUSH_PROGRESS:
+                    flushProgress();
+                    break;
+                case MSG_EVICT_TASKS:
+                    scheduleEviction();
+                    break;
+                default:
+                    super.handleMessage(msg);
+                    break;
+            }
+        }
+    };
+
+    private final Messenger mMessenger = new Messenger(mServiceHandler);
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "onCreate and register download broadcast");
 
+        mDownloadScheduler = new DownloadScheduler();
+
         registerDownloadBroadcast();
     }
 
@@ -61,21 +182,29 @@ public class DownloadService extends Service {
 
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
+        if (intent == null) return START_NOT_STICKY;
+        mLastStartId = startId;
         String filePath = intent.getStringExtra(INTENT_FILE_PATH);
         String url = intent.getStringExtra(INTENT_URL);
         Long downloadId = intent.getLongExtra(INTENT_DOWNLOAD_ID, -1);
+        int segmentCount = intent.getIntExtra(INTENT_SEGMENT_COUNT, 0);
+        int priority = intent.getIntExtra(INTENT_PRIORITY, DownloadManager.PRIORITY_NORMAL);
         Log.d(TAG, "onStartCommand download id: " + downloadId);
 
-        // 创建下载任务，添加到缓存，并启动
-        final DownloadTask downloadTask = createDownloadTask(filePath, url, downloadId);
-        mDownloadTaskCache.put(downloadId, downloadTask);
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                downloadTask.start();
-            }
-        }).start();
-        return super.onStartCommand(intent, flags, startId);
+        // 创建下载任务，添加到缓存，并加入调度队列
+        DownloadTask downloadTask = createDownloadTask(filePath, url, downloadId);
+        downloadTask.setSegmentCount(segmentCount);
+        downloadTask.setMaxBytesPerSecond(intent.getLongExtra(INTENT_MAX_BYTES_PER_SECOND, 0));
+        downloadTask.setDigest(intent.getStringExtra(INTENT_DIGEST_ALGORITHM),
+                intent.getStringExtra(INTENT_EXPECTED_DIGEST));
+        downloadTask.setVersion(intent.getStringExtra(INTENT_VERSION));
+        ArtifactCache artifactCache = DownloadConfig.getArtifactCache();
+        downloadTask.setArtifactCache(artifactCache != null ? artifactCache : ArtifactCache.getDefault(this));
+        mDownloadTaskRegistry.register(downloadId, downloadTask);
+        mRunningStartIds.put(startId, downloadId);
+        mDownloadScheduler.enqueue(downloadTask, priority);
+        // 进程被杀死后重新传递还没有结束的Intent, 根据断点记录继续下载缺失的数据
+        return START_REDELIVER_INTENT;
     }
 
     /**
@@ -86,329 +215,508 @@ public class DownloadService extends Service {
      * @param downloadId 下载文件ID
      * @return 下载任务
      */
-    private DownloadTask createDownloadTask(String filePath, String url, final Long downloadId) {
+    private DownloadTask createDownloadTask(String filePath, String url, Long downloadId) {
         DownloadTask delegate = new DownloadTask();
         if (!TextUtils.isEmpty(filePath)) {
             delegate.setFilePath(filePath);
         }
 
         delegate.setUrl(url);
-        delegate.setOnDownloadListener(new DownloadListener() {
-            @Override
-            public void onProgress(long totalValue, long currentValue) {
-                Intent broadcast = new Intent(DownloadManager.ACTION_DOWNLOAD_PROGRESS);
-                broadcast.putExtra(DownloadManager.TOTAL_VALUE, totalValue);
-                broadcast.putExtra(DownloadManager.CURRENT_VALUE, currentValue);
-                sendBroadcast(broadcast);
+        delegate.setOnDownloadListener(new TaskListener(downloadId));
+        return delegate;
+    }
+
+    /**
+     * 下载任务的回调, 接收包含速度的进度, 将结果分发给客户端
+     */
+    private class TaskListener implements DownloadListener, DownloadProgressListener {
+
+        private final Long mDownloadId;
+
+        TaskListener(Long downloadId) {
+            mDownloadId = downloadId;
+        }
+
+        @Override
+        public void onProgress(long totalValue, long currentValue) {
+            onProgress(new DownloadProgress(totalValue, currentValue, 0));
+        }
+
+        @Override
+        public void onProgress(@NonNull DownloadProgress progress) {
+            dispatchProgress(mDownloadId, progress);
+        }
+
+        @Override
+        public void onError(@Nullable String errorMsg) {
+            DownloadTask delegate = mDownloadTaskRegistry.get(mDownloadId);
+            if (delegate != null) {
+                delegate.stop();
             }
+            finishDownloadTask(mDownloadId);
+            dispatchResult(mDownloadId, DownloadListener.DOWNLOAD_FAILED, errorMsg, null);
+        }
 
-            @Override
-            public void onError(@Nullable String errorMsg) {
-                DownloadTask delegate = mDownloadTaskCache.get(downloadId);
-                if (delegate != null) {
-                    delegate.stop();
-                }
+        @Override
+        public void onSuccess(@NonNull String filePath) {
+            DownloadTask delegate = mDownloadTaskRegistry.get(mDownloadId);
+            String digest = null;
+            if (delegate != null) {
+                delegate.stop();
+                digest = delegate.getDigest();
+            }
+            finishDownloadTask(mDownloadId);
+            dispatchResult(mDownloadId, DownloadListener.DOWNLOAD_SUCCESS, filePath, digest);
+        }
+    }
 
-                Intent broadcast = new Intent(DownloadManager.ACTION_DOWNLOAD_FAILED);
-                broadcast.putExtra(DownloadManager.STATUS_FAILED, errorMsg);
-                sendBroadcast(broadcast);
+    /**
+     * 下载进度先缓存, 按照 {@link DownloadConfig#getProgressInterval()} 的间隔将所有任务的进度
+     * 合并为一条消息发送给每个客户端. 没有客户端绑定时使用广播发送
+     */
+    private void dispatchProgress(long downloadId, DownloadProgress progress) {
+        List<LocalClient> localClients = mLocalClients.get(downloadId);
+        if (localClients != null) {
+            for (LocalClient client : localClients) {
+                client.onProgress(progress);
             }
+        }
+        if (!mClients.containsKey(downloadId)) {
+            if (localClients != null) return;
+            Intent broadcast = new Intent(DownloadManager.ACTION_DOWNLOAD_PROGRESS);
+            broadcast.putExtra(INTENT_DOWNLOAD_ID, downloadId);
+            broadcast.putExtra(DownloadManager.TOTAL_VALUE, progress.getTotalSize());
+            broadcast.putExtra(DownloadManager.CURRENT_VALUE, progress.getDownloadedSize());
+            broadcast.putExtra(DownloadManager.BYTES_PER_SECOND, progress.getBytesPerSecond());
+            sendBroadcast(broadcast);
+            return;
+        }
+        mPendingProgress.put(downloadId, progress);
+        if (!mServiceHandler.hasMessages(MSG_FLUSH_PROGRESS)) {
+            mServiceHandler.sendEmptyMessageDelayed(MSG_FLUSH_PROGRESS,
+                    DownloadConfig.getProgressInterval());
+        }
+    }
 
-            @Override
-            public void onSuccess(@NonNull String filePath) {
-                DownloadTask delegate = mDownloadTaskCache.get(downloadId);
-                if (delegate != null) {
-                    delegate.stop();
+    /**
+     * 发送合并后的下载进度, 每个客户端只发送一条消息, 包含该客户端注册的所有下载任务的进度
+     */
+    private void flushProgress() {
+        Map<Messenger, List<Long>> clientDownloadIds = new HashMap<>();
+        for (Long downloadId : mPendingProgress.keySet()) {
+            List<Messenger> clients = mClients.get(downloadId);
+            if (clients == null) continue;
+            for (Messenger client : clients) {
+                List<Long> downloadIds = clientDownloadIds.get(client);
+                if (downloadIds == null) {
+                    downloadIds = new ArrayList<>();
+                    clientDownloadIds.put(client, downloadIds);
                 }
+                downloadIds.add(downloadId);
+            }
+        }
+        for (Map.Entry<Messenger, List<Long>> entry : clientDownloadIds.entrySet()) {
+            List<Long> downloadIds = entry.getValue();
+            long[] ids = new long[downloadIds.size()];
+            long[] totalValues = new long[ids.length];
+            long[] currentValues = new long[ids.length];
+            long[] bytesPerSecond = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                DownloadProgress progress = mPendingProgress.get(downloadIds.get(i));
+                ids[i] = downloadIds.get(i);
+                totalValues[i] = progress.getTotalSize();
+                currentValues[i] = progress.getDownloadedSize();
+                bytesPerSecond[i] = progress.getBytesPerSecond();
+            }
+            Message message = Message.obtain(null, DownloadListener.DOWNLOAD_PROGRESS);
+            Bundle data = new Bundle();
+            data.putLongArray(KEY_DOWNLOAD_IDS, ids);
+            data.putLongArray(KEY_TOTAL_VALUES, totalValues);
+            data.putLongArray(KEY_CURRENT_VALUES, currentValues);
+            data.putLongArray(KEY_BYTES_PER_SECOND, bytesPerSecond);
+            message.setData(data);
+            sendToClient(entry.getKey(), message);
+        }
+        mPendingProgress.clear();
+    }
 
-                Intent broadcast = new Intent(DownloadManager.ACTION_DOWNLOAD_SUCCESS);
-                broadcast.putExtra(DownloadManager.STAtUS_SUCCESS, filePath);
-                sendBroadcast(broadcast);
+    /**
+     * 发送下载成功或失败的消息, 发送前先发送缓存的进度, 保证客户端收到的事件顺序不变.
+     * 没有客户端绑定时使用广播发送
+     *
+     * @param downloadId 下载ID
+     * @param what       {@link DownloadListener#DOWNLOAD_SUCCESS} 或 {@link DownloadListener#DOWNLOAD_FAILED}
+     * @param value      下载文件路径或者错误信息
+     * @param digest     下载成功时的文件摘要, 没有设置摘要算法时为null
+     */
+    private void dispatchResult(long downloadId, int what, String value, String digest) {
+        // 下载已结束, 同一个进程内的客户端回调后不再需要保留
+        List<LocalClient> localClients = mLocalClients.remove(downloadId);
+        if (localClients != null) {
+            for (LocalClient client : localClients) {
+                client.onResult(what, value, digest);
             }
-        });
-        return delegate;
+        }
+        List<Messenger> clients = mClients.get(downloadId);
+        if (clients == null) {
+            if (localClients != null) return;
+            Intent broadcast;
+            if (what == DownloadListener.DOWNLOAD_SUCCESS) {
+                broadcast = new Intent(DownloadManager.ACTION_DOWNLOAD_SUCCESS);
+                broadcast.putExtra(DownloadManager.STAtUS_SUCCESS, value);
+                broadcast.putExtra(DownloadManager.DIGEST, digest);
+            } else {
+                broadcast = new Intent(DownloadManager.ACTION_DOWNLOAD_FAILED);
+                broadcast.putExtra(DownloadManager.STATUS_FAILED, value);
+            }
+            broadcast.putExtra(INTENT_DOWNLOAD_ID, downloadId);
+            sendBroadcast(broadcast);
+            return;
+        }
+        if (mPendingProgress.containsKey(downloadId)) {
+            mServiceHandler.removeMessages(MSG_FLUSH_PROGRESS);
+            flushProgress();
+        }
+        for (Messenger client : new ArrayList<>(clients)) {
+            Message message = Message.obtain(null, what);
+            Bundle data = new Bundle();
+            data.putLong(INTENT_DOWNLOAD_ID, downloadId);
+            data.putString(what == DownloadListener.DOWNLOAD_SUCCESS
+                    ? DownloadManager.STAtUS_SUCCESS : DownloadManager.STATUS_FAILED, value);
+            data.putString(DownloadManager.DIGEST, digest);
+            message.setData(data);
+            sendToClient(client, message);
+        }
     }
 
-    @Nullable
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
+    /**
+     * 发送消息给客户端, 客户端进程已经结束时移除该客户端
+     */
+    private void sendToClient(Messenger client, Message message) {
+        try {
+            client.send(message);
+        } catch (RemoteException e) {
+            Log.e(TAG, "客户端已断开, 移除下载回调");
+            removeClient(client);
+        }
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        Log.d(TAG, "onDestroy and unregister download broadcast");
+    private void registerClient(long downloadId, Messenger client) {
+        List<Messenger> clients = mClients.get(downloadId);
+        if (clients == null) {
+            clients = new ArrayList<>();
+            mClients.put(downloadId, clients);
+        }
+        if (!clients.contains(client)) clients.add(client);
+        Log.d(TAG, "注册下载回调, download id: " + downloadId);
+    }
 
-        unregisterDownloadBroadcast();
+    private void unregisterClient(long downloadId, Messenger client) {
+        List<Messenger> clients = mClients.get(downloadId);
+        if (clients == null) return;
+        clients.remove(client);
+        if (clients.isEmpty()) mClients.remove(downloadId);
     }
 
-    private void unregisterDownloadBroadcast() {
-        for (Map.Entry<Long, DownloadTask> entry : mDownloadTaskCache.entrySet()) {
-            if (entry.getValue() != null) {
-                entry.getValue().stop();
-            }
+    private void removeClient(Messenger client) {
+        Iterator<Map.Entry<Long, List<Messenger>>> iterator = mClients.entrySet().iterator();
+        while (iterator.hasNext()) {
+            List<Messenger> clients = iterator.next().getValue();
+            clients.remove(client);
+            if (clients.isEmpty()) iterator.remove();
         }
-
-        unregisterReceiver(mDownloadListenerBroadcast);
     }
 
-    private class DownloadListenerBroadcast extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (action != null && action.equals(ACTION_DOWNLOAD_PAUSE)) {
-                long downloadId = intent.getLongExtra("", -1);
-                DownloadTask delegate = mDownloadTaskCache.get(downloadId);
-                if (delegate != null) {
-                    delegate.stop();
-                }
-            }
+    /**
+     * 注册同一个进程内的下载回调, 在主线程调用
+     *
+     * @param downloadId 下载ID
+     * @param listener   下载回调
+     * @param executor   执行回调的线程, 为null时在主线程直接回调
+     */
+    void registerLocalListener(long downloadId, DownloadListener listener, @Nullable Executor executor) {
+        List<LocalClient> clients = mLocalClients.get(downloadId);
+        if (clients == null) {
+            clients = new CopyOnWriteArrayList<>();
+            mLocalClients.put(downloadId, clients);
         }
+        clients.add(new LocalClient(listener, executor));
+        Log.d(TAG, "注册进程内下载回调, download id: " + downloadId);
     }
 
     /**
-     * <pre>
-     * new DownloadTask()
-     *        .setUrl(url)
-     *        .setOnDownloadListener(new DownloadTask.DownloadListener() {
-     *            public void onProgress(long totalValue, long currentValue, long percent) {
-     *                append(percent + "%  ");
-     *                Log.d("TAG", "下载的百分比: " + percent + "%  ");
-     *            }
-     *            public void onError(@Nullable String errorMsg) {
-     *                append("\n下载错误: " + errorMsg);
-     *            }
-     *            public void onSuccess(@NonNull File file) {
-     *                append("\n下载成功: 100%");
-     *            }
-     *        }).start();
-     * </pre>
+     * 取消注册同一个进程内的下载回调, 可以在任意线程调用
+     *
+     * @param downloadId 下载ID
+     * @param listener   注册时的下载回调
      */
-    private static class DownloadTask {
+    void unregisterLocalListener(long downloadId, DownloadListener listener) {
+        List<LocalClient> clients = mLocalClients.get(downloadId);
+        if (clients == null) return;
+        for (LocalClient client : clients) {
+            if (client.mListener == listener) clients.remove(client);
+        }
+        if (clients.isEmpty()) mLocalClients.remove(downloadId);
+    }
 
-        private final String TAG = "DownloadTask";
+    /**
+     * 修改下载任务的速度上限, 正在下载的任务立即生效
+     *
+     * @param downloadId        下载ID
+     * @param maxBytesPerSecond 每秒最多下载的字节数, 小于等于0表示不限速
+     */
+    void setMaxBytesPerSecond(long downloadId, long maxBytesPerSecond) {
+        DownloadTask delegate = mDownloadTaskRegistry.get(downloadId);
+        if (delegate != null) {
+            delegate.setMaxBytesPerSecond(maxBytesPerSecond);
+        }
+    }
 
-        private static final String GET = "GET";
-        private static final String POST = "POST";
+    /**
+     * @param downloadId 下载ID
+     * @return 下载任务最近一次下载的指标快照, 任务不存在或者已经被移除时返回null
+     */
+    @Nullable
+    DownloadMetrics.Snapshot getMetrics(long downloadId) {
+        DownloadTask delegate = mDownloadTaskRegistry.get(downloadId);
+        return delegate == null ? null : delegate.getMetrics().snapshot();
+    }
 
-        private DownloadListener mDownloadListener;
-        private File mDownloadFile;
+    /**
+     * @param downloadId 下载ID
+     * @return 下载任务最近一次回调的进度, 任务不存在或者还没有进度时返回null
+     */
+    @Nullable
+    DownloadProgress getProgress(long downloadId) {
+        DownloadTask delegate = mDownloadTaskRegistry.get(downloadId);
+        return delegate == null ? null : delegate.getProgress();
+    }
 
-        private boolean isDownloadRunning = false;
-        private String mFilePath = Environment.getExternalStorageDirectory().getAbsolutePath();
-        private String mUrl;
+    /**
+     * 合并所有未结束任务的进度, 速度为各任务速度之和, 剩余时间按合并后的剩余大小和速度计算.
+     * 有任务的文件总大小未知时合并后的文件总大小也未知
+     *
+     * @return 所有未结束任务的进度, 没有未结束的任务时返回null
+     */
+    @Nullable
+    DownloadProgress getTotalProgress() {
+        long totalSize = 0, downloadedSize = 0, bytesPerSecond = 0;
+        boolean hasProgress = false;
+        for (Map.Entry<Long, DownloadTask> entry : mDownloadTaskRegistry.getTasks().entrySet()) {
+            if (mDownloadTaskRegistry.getFinishedTime(entry.getKey()) >= 0) continue;
+            DownloadProgress progress = entry.getValue().getProgress();
+            if (progress == null) continue;
+            hasProgress = true;
+            totalSize = progress.getTotalSize() <= 0 || totalSize < 0 ? -1 : totalSize + progress.getTotalSize();
+            downloadedSize += progress.getDownloadedSize();
+            bytesPerSecond += progress.getBytesPerSecond();
+        }
+        return hasProgress ? new DownloadProgress(totalSize, downloadedSize, bytesPerSecond) : null;
+    }
 
-        public void start() {
-            download();
+    /**
+     * 暂停下载任务
+     *
+     * @param downloadId 下载ID
+     */
+    void pauseDownloadTask(long downloadId) {
+        DownloadTask delegate = mDownloadTaskRegistry.get(downloadId);
+        if (delegate != null) {
+            mDownloadScheduler.cancel(delegate);
+            finishDownloadTask(downloadId);
         }
+    }
 
-        public void stop() {
-            if (isDownloadRunning) {
-                isDownloadRunning = false;
-            }
+    /**
+     * 标记下载任务已结束, 超过保留时间后从缓存中移除
+     *
+     * @param downloadId 下载ID
+     */
+    private void finishDownloadTask(long downloadId) {
+        mDownloadTaskRegistry.markFinished(downloadId);
+        if (!mServiceHandler.hasMessages(MSG_EVICT_TASKS)) {
+            mServiceHandler.sendEmptyMessageDelayed(MSG_EVICT_TASKS, DownloadConfig.getTaskRetention());
         }
+        releaseStartIds(downloadId);
+    }
 
-        public void setUrl(String url) {
-            this.mUrl = url;
+    /**
+     * 释放已结束任务的startId. stopSelfResult(startId)会同时释放所有更早的startId, 所以只释放到
+     * 最早的还在下载的startId之前, 所有任务都结束后服务在没有客户端绑定时停止
+     *
+     * @param downloadId 已结束的下载ID
+     */
+    private void releaseStartIds(long downloadId) {
+        Iterator<Long> iterator = mRunningStartIds.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == downloadId) iterator.remove();
+        }
+        int stopStartId = mRunningStartIds.isEmpty() ? mLastStartId : mRunningStartIds.firstKey() - 1;
+        if (stopStartId > mStoppedStartId) {
+            mStoppedStartId = stopStartId;
+            stopSelfResult(stopStartId);
         }
+    }
 
-        public void setFilePath(String filePath) {
-            this.mFilePath = filePath;
+    /**
+     * 移除已过期的任务, 还有未过期的已结束任务时在下一个任务过期时再次移除
+     */
+    private void scheduleEviction() {
+        long nextExpire = mDownloadTaskRegistry.evictExpired();
+        if (nextExpire >= 0) {
+            mServiceHandler.sendEmptyMessageDelayed(MSG_EVICT_TASKS, nextExpire);
         }
+    }
 
-        public void setOnDownloadListener(DownloadListener listener) {
-            this.mDownloadListener = listener;
+    /**
+     * 客户端绑定服务后, 通过Messenger注册下载回调, 下载事件直接发送给客户端, 不再通过系统广播.
+     * 与服务在同一个进程的客户端使用 {@link #ACTION_BIND_LOCAL} 绑定, 直接获取服务对象注册下载回调
+     */
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_LOCAL.equals(intent.getAction())) {
+            return mLocalBinder;
         }
+        return mMessenger.getBinder();
+    }
 
-        public String getFilePath() {
-            return mFilePath;
+    /**
+     * adb shell dumpsys activity service com.dzenm.download/.DownloadService 输出所有下载任务的状态、
+     * 缓冲区池、连接池和调度器的统计. 只读取volatile、原子变量和并发集合, 不会阻塞下载线程
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        long now = SystemClock.uptimeMillis();
+        writer.println("DownloadService:");
+        writer.println("  scheduler: active=" + mDownloadScheduler.getActiveCount()
+                + " queued=" + mDownloadScheduler.getQueueDepth()
+                + " maxConcurrent=" + DownloadConfig.getMaxConcurrentDownloads()
+                + " maxPerHost=" + DownloadConfig.getMaxDownloadsPerHost());
+
+        SortedMap<Long, DownloadTask> tasks = mDownloadTaskRegistry.getTasks();
+        writer.println("  tasks (" + tasks.size() + "):");
+        for (Map.Entry<Long, DownloadTask> entry : tasks.entrySet()) {
+            long finishedTime = mDownloadTaskRegistry.getFinishedTime(entry.getKey());
+            writer.println("    #" + entry.getKey()
+                    + (finishedTime < 0 ? "" : " finished " + (now - finishedTime) + "ms ago"));
+            entry.getValue().dump(writer, "      ");
         }
 
-        public boolean isDownloadRunning() {
-            return isDownloadRunning;
+        ByteBufferPool bufferPool = ByteBufferPool.getInstance();
+        writer.println("  buffer pool: hit=" + bufferPool.getHitCount() + " miss=" + bufferPool.getMissCount()
+                + " pooled=" + bufferPool.getPooledCount() + " (" + bufferPool.getPooledBytes() + "B)"
+                + " maxBufferSize=" + bufferPool.getMaxBufferSize());
+        HttpTransport transport = DownloadConfig.getHttpTransport();
+        if (transport instanceof PooledHttpTransport) {
+            ConnectionPool connectionPool = ((PooledHttpTransport) transport).getConnectionPool();
+            writer.println("  connection pool: idle=" + connectionPool.getIdleCount()
+                    + " connect=" + connectionPool.getConnectCount()
+                    + " reuse=" + connectionPool.getReuseCount());
+        } else {
+            writer.println("  transport: " + transport.getClass().getName());
         }
+        DownloadProgress totalProgress = getTotalProgress();
+        if (totalProgress != null) writer.println("  progress: " + totalProgress);
+        writer.println("  total: " + DownloadMetrics.getTotal().snapshot());
+    }
 
-        /**
-         * 开始下载
-         */
-        private void download() {
-            if (isDownloadRunning) return;
-            else isDownloadRunning = true;
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // 释放缓存的缓冲区, 下载中的分段在下一次读取时使用更小的缓冲区
+        Log.d(TAG, "onTrimMemory: " + level);
+        ByteBufferPool.getInstance().trimMemory(level);
+    }
 
-            File parent = new File(mFilePath);
-            if (!parent.exists()) {
-                parent.mkdirs();
-            }
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "onDestroy and unregister download broadcast");
 
-            String fileName = mUrl.substring(mUrl.lastIndexOf("/") + 1);
-            if (!fileName.endsWith(".apk")) {
-                fileName = fileName + ".apk";
-            }
-            mDownloadFile = new File(parent, fileName);
-
-            Log.d(TAG, "下载文件路径: " + mDownloadFile.getAbsolutePath());
-
-            HttpURLConnection connection = null;
-            try {
-                long alreadyDownloadFileSize = mDownloadFile.length();
-                Log.d(TAG, "已下载文件大小: " + alreadyDownloadFileSize);
-
-                // 设置请求信息
-                Map<String, String> requestHeaders = new HashMap<>();
-                requestHeaders.put("Range", "bytes=" + alreadyDownloadFileSize + "-");
-                requestHeaders.put("Charset", "UTF-8");
-                connection = createRequest(mUrl, GET, requestHeaders, 10000, 20000);
-                Log.d(TAG, "下载文件Url: " + mUrl);
-
-                // 请求返回内容
-                int responseCode = connection.getResponseCode();
-                long contentLength = connection.getContentLength();
-                Log.d(TAG, "请求结果: " + responseCode + ", 剩余文件大小: " + contentLength);
-
-                if (responseCode == HttpURLConnection.HTTP_OK
-                        || responseCode == HttpURLConnection.HTTP_PARTIAL) {
-                    writeStreamToFile(mDownloadFile, connection, alreadyDownloadFileSize + contentLength);
-                } else if (responseCode == 416) {
-                    sendDownloadFailedMessage("超出文件范围 " + contentLength);
-                } else {
-                    sendDownloadFailedMessage("HTTP请求错误 " + responseCode);
-                }
-            } catch (IOException e) {
-                sendDownloadFailedMessage(e.getMessage());
-                e.printStackTrace();
-            } finally {
-                if (connection != null) connection.disconnect();
+        unregisterDownloadBroadcast();
+    }
+
+    private void unregisterDownloadBroadcast() {
+        mDownloadScheduler.shutdown();
+        mServiceHandler.removeMessages(MSG_FLUSH_PROGRESS);
+        mServiceHandler.removeMessages(MSG_EVICT_TASKS);
+        mClients.clear();
+        mLocalClients.clear();
+
+        unregisterReceiver(mDownloadListenerBroadcast);
+    }
+
+    private class DownloadListenerBroadcast extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (action != null && action.equals(ACTION_DOWNLOAD_PAUSE)) {
+                long downloadId = intent.getLongExtra(INTENT_DOWNLOAD_ID, -1);
+                pauseDownloadTask(downloadId);
             }
         }
+    }
 
-        /**
-         * 创建HTTP请求
-         *
-         * @param urlString      请求的URL
-         * @param requestMethod  请求的方式
-         * @param headers        请求头部信息
-         * @param connectTimeout 连接超时时间
-         * @param readTimeout    读取超时时间
-         * @return HttpURLConnection
-         * @throws IOException 请求的异常
-         */
-        private HttpURLConnection createRequest(String urlString, String requestMethod,
-                                                Map<String, String> headers, int connectTimeout,
-                                                int readTimeout) throws IOException {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // 设置字符编码
-            connection.setRequestMethod(requestMethod);
-            connection.setConnectTimeout(connectTimeout);
-            connection.setReadTimeout(readTimeout);
-            connection.setInstanceFollowRedirects(true);
-
-            if (connection.getRequestMethod().equals(POST)) {
-                // 设置是否向从HttpURLConnection输出, Post请求中,
-                // 参数要放在http正文内, 因此需要设置为true, 默认情况下是false
-                connection.setDoOutput(true);
-                // Post请求不能使用缓存
-                connection.setUseCaches(false);
-            }
+    /**
+     * 同一个进程内绑定服务返回的Binder, 客户端判断为该类型时直接调用服务的方法
+     */
+    class LocalBinder extends Binder {
 
-            // 设置是否向从HttpURLConnection读入, 默认情况下是true
-            connection.setDoInput(true);
+        DownloadService getService() {
+            return DownloadService.this;
+        }
+    }
 
-            // 设置开始下载的位置, 单位为字节
-            // Range: bytes=startOffset-targetOffset/sum  [表示从startOffset读取，一直读取到targetOffset位置，读取总数为sum直接]
-            // Range: bytes=startOffset-targetOffset  [字节总数也可以去掉]
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                connection.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-            connection.connect();
-            return connection;
-        }
-
-        /**
-         * 保存文件
-         *
-         * @param file       下载的文件
-         * @param connection 获取下载文件流
-         * @param totalSize  总下载文件大小
-         */
-        private void writeStreamToFile(File file, HttpURLConnection connection, long totalSize) {
-            try (InputStream inputStream = connection.getInputStream();
-                 FileOutputStream fileOutputStream = new FileOutputStream(file, true)) {
-                long fileSize = file.length();
-                int length;
-                byte[] buffer = new byte[1024];
-                while (isDownloadRunning && (length = inputStream.read(buffer)) != -1) {
-                    if (!isDownloadRunning) break;
-                    fileOutputStream.write(buffer, 0, length);
-                    fileSize = fileSize + length;
-
-                    Message message = new Message();
-                    message.what = DownloadListener.DOWNLOAD_PROGRESS;
-                    message.obj = new long[]{fileSize, totalSize};
-                    mDownloadCallbackHandler.sendMessage(message);
-                }
-                if (totalSize == fileSize) {
-                    mDownloadCallbackHandler.sendEmptyMessage(DownloadListener.DOWNLOAD_SUCCESS);
-                } else {
-                    sendDownloadFailedMessage("文件大小与服务器文件大小不一致");
+    /**
+     * 同一个进程内的下载回调, 在指定的线程中执行
+     */
+    private static class LocalClient {
+
+        private final DownloadListener mListener;
+        private final Executor mExecutor;
+
+        LocalClient(DownloadListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void onProgress(final DownloadProgress progress) {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener instanceof DownloadProgressListener) {
+                        ((DownloadProgressListener) mListener).onProgress(progress);
+                    } else {
+                        mListener.onProgress(progress.getTotalSize(), progress.getDownloadedSize());
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            };
+            if (mExecutor == null) {
+                runnable.run();
+            } else {
+                mExecutor.execute(runnable);
             }
         }
 
-        @SuppressLint("HandlerLeak")
-        private Handler mDownloadCallbackHandler = new Handler() {
-            private long mCurrentPercent = 0;
-
-            @Override
-            public void handleMessage(@NonNull Message msg) {
-                switch (msg.what) {
-                    case DownloadListener.DOWNLOAD_PROGRESS:
-                        // 下载进度回调
-                        isDownloadRunning = true;
-                        long[] fileSizes = (long[]) msg.obj;
-                        long alreadyDownloadFileSize = fileSizes[0], totalSize = fileSizes[1];
-                        // 计算下载的百分比
-                        long percent = alreadyDownloadFileSize * 100 / totalSize;
-                        if (percent != mCurrentPercent) {
-                            mCurrentPercent = percent;
-                            Log.d(TAG, "下载进度: " + percent);
-                            if (mDownloadListener != null) {
-                                mDownloadListener.onProgress(totalSize, alreadyDownloadFileSize);
-                            }
-                        }
-                        break;
-                    case DownloadListener.DOWNLOAD_SUCCESS:
-                        // 下载成功回调
-                        isDownloadRunning = false;
-                        Log.d(TAG, "下载完成: " + mDownloadFile.getAbsolutePath());
-                        if (mDownloadListener != null) {
-                            mDownloadListener.onSuccess(mDownloadFile.getAbsolutePath());
-                        }
-                        break;
-                    case DownloadListener.DOWNLOAD_FAILED:
-                        // 下载失败回调
-                        isDownloadRunning = false;
-                        String errorMsg = (String) msg.obj;
-                        Log.e(TAG, "下载失败: " + errorMsg);
-                        if (mDownloadListener != null) {
-                            mDownloadListener.onError(errorMsg);
-                        }
-                        break;
-                    default:
-                        break;
+        void onResult(final int what, final String value, final String digest) {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (what != DownloadListener.DOWNLOAD_SUCCESS) {
+                        mListener.onError(value);
+                    } else if (mListener instanceof DownloadDigestListener) {
+                        ((DownloadDigestListener) mListener).onSuccess(value, digest);
+                    } else {
+                        mListener.onSuccess(value);
+                    }
                 }
+            };
+            if (mExecutor == null) {
+                runnable.run();
+            } else {
+                mExecutor.execute(runnable);
             }
-        };
-
-        private void sendDownloadFailedMessage(@Nullable String errorMsg) {
-            Message message = new Message();
-            message.what = DownloadListener.DOWNLOAD_FAILED;
-            message.obj = errorMsg;
-            mDownloadCallbackHandler.sendMessage(message);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1382 @@
+package com.dzenm.download;
+
+import android.annotation.SuppressLint;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * new DownloadTask()
+ *        .setUrl(url)
+ *        .setOnDownloadListener(new DownloadTask.DownloadListener() {
+ *            public void onProgress(long totalValue, long currentValue) {
+ *                long percent = currentValue * 100 / totalValue;
+ *                append(percent + "%  ");
+ *                Log.d("TAG", "下载的百分比: " + percent + "%  ");
+ *            }
+ *            public void onError(@Nullable String errorMsg) {
+ *                append("\n下载错误: " + errorMsg);
+ *            }
+ *            public void onSuccess(@NonNull File file) {
+ *                append("\n下载成功: 100%");
+ *            }
+ *        }).start();
+ * </pre>
+ */
+class DownloadTask {
+
+    private static final String TAG = "DownloadTask";
+
+    /**
+     * 连接和读取超时时间(毫秒)
+     */
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+
+    /**
+     * 下载时的临时文件后缀, 下载完成后重命名为下载文件
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * 单个分段的最小字节数, 文件太小时切分反而增加请求的开销
+     */
+    private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+    /**
+     * 分段下载的线程池, 所有下载任务共享
+     */
+    private static final ExecutorService SEGMENT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "DownloadSegment-" + mCount.incrementAndGet());
+        }
+    });
+
+    private DownloadListener mDownloadListener;
+    private File mDownloadFile;
+
+    private volatile boolean isDownloadRunning = false;
+
+    /**
+     * 任务状态, 用于 {@link #dump(PrintWriter, String)} 和调度器判断任务是否被中途停止
+     */
+    static final int STATE_IDLE = 0;
+    static final int STATE_QUEUED = 1;
+    static final int STATE_RUNNING = 2;
+    static final int STATE_STOPPED = 3;
+    static final int STATE_SUCCEEDED = 4;
+    static final int STATE_FAILED = 5;
+    private static final String[] STATE_NAMES = {"idle", "queued", "running", "stopped", "succeeded", "failed"};
+
+    private volatile int mState = STATE_IDLE;
+    private volatile String mLastError;
+
+    /**
+     * 正在执行下载的线程和本次下载的分段, 只用于 {@link #dump(PrintWriter, String)}
+     */
+    private volatile Thread mThread;
+    private volatile Segment[] mSegments = new Segment[0];
+
+    /**
+     * 是否已经调用了 {@link #stop()}, 在开始下载之前停止时不再开始下载
+     */
+    private boolean isStopped = false;
+    private String mFilePath = Environment.getExternalStorageDirectory().getAbsolutePath();
+    private String mUrl;
+
+    /**
+     * 分段下载数量, 小于等于0时使用全局配置 {@link DownloadConfig#getSegmentCount()}
+     */
+    private int mSegmentCount = 0;
+
+    /**
+     * 分段下载中有分段失败时, 通知其它分段停止下载
+     */
+    private volatile boolean isSegmentAborted = false;
+
+    /**
+     * 已下载的文件大小和文件总大小, 下载线程写入, 主线程回调进度时读取
+     */
+    private final AtomicLong mDownloadedSize = new AtomicLong();
+    private volatile long mTotalSize = 0;
+
+    /**
+     * 本次下载的指标, 每次开始下载时重新创建
+     */
+    private volatile DownloadMetrics mMetrics = new DownloadMetrics(null);
+
+    /**
+     * 进入等待队列的时间(纳秒), 不在等待队列中时为0
+     */
+    private volatile long mQueuedTime = 0;
+
+    /**
+     * 上一次发送进度消息的时间和已下载的文件大小, 用于控制进度回调的频率, 多个分段线程同时更新
+     */
+    private final AtomicLong mLastProgressTime = new AtomicLong();
+    private final AtomicLong mLastProgressSize = new AtomicLong();
+
+    /**
+     * 是否已有进度消息在等待主线程处理, 同一时间最多只有一条进度消息
+     */
+    private final AtomicBoolean isProgressPending = new AtomicBoolean(false);
+
+    /**
+     * 根据进度估算下载速度, 只在主线程处理进度消息时使用
+     */
+    private final SpeedEstimator mSpeedEstimator = new SpeedEstimator();
+
+    /**
+     * 主线程最近一次计算的下载进度, 还没有进度时为null
+     */
+    private volatile DownloadProgress mProgress;
+
+    /**
+     * 下载数据写入的临时文件, 所有分段共享同一个FileChannel, 按位置写入
+     */
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mFileChannel;
+
+    /**
+     * 本次下载使用的HTTP传输层, 开始下载时从 {@link DownloadConfig#getHttpTransport()} 获取
+     */
+    private HttpTransport mTransport;
+
+    /**
+     * 当前任务的限速器, 所有分段共享, 与全局的限速器 {@link DownloadConfig#getRateLimiter()} 同时生效
+     */
+    private final RateLimiter mRateLimiter = new RateLimiter(0);
+
+    /**
+     * 摘要算法和期望的摘要, 下载过程中计算摘要, 与期望的摘要不一致时下载失败
+     */
+    private String mDigestAlgorithm;
+    private String mExpectedDigest;
+    private DownloadDigest mDownloadDigest;
+    private volatile String mDigest;
+
+    /**
+     * 文件的版本和下载完成的文件缓存, 设置了版本或者期望的摘要时使用缓存
+     */
+    private String mVersion;
+    private ArtifactCache mArtifactCache;
+
+    /**
+     * 正在读取数据的响应, 停止下载时关闭连接, 阻塞在读取数据中的线程立即返回
+     */
+    private final Set<HttpTransport.Response> mActiveResponses = Collections.newSetFromMap(
+            new ConcurrentHashMap<HttpTransport.Response, Boolean>());
+
+    public void start() {
+        download();
+    }
+
+    /**
+     * 停止下载, 关闭正在读取数据的连接, 所有分段线程立即结束并释放下载文件.
+     * 可以在任意线程调用, 在开始下载之前调用时不再开始下载
+     */
+    public void stop() {
+        synchronized (this) {
+            isStopped = true;
+            isDownloadRunning = false;
+        }
+        for (HttpTransport.Response response : mActiveResponses) {
+            response.cancel();
+        }
+        // 等待限速令牌的分段立即结束, 不需要等到下一次令牌
+        mRateLimiter.wakeUp();
+        DownloadConfig.getRateLimiter().wakeUp();
+    }
+
+    /**
+     * 清除停止的状态, 被高优先级任务暂停的任务重新进入等待队列时调用
+     */
+    synchronized void clearStopped() {
+        isStopped = false;
+    }
+
+    public void setUrl(String url) {
+        this.mUrl = url;
+    }
+
+    public void setFilePath(String filePath) {
+        this.mFilePath = filePath;
+    }
+
+    public void setSegmentCount(int segmentCount) {
+        this.mSegmentCount = Math.min(segmentCount, DownloadConfig.MAX_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param maxBytesPerSecond 当前任务每秒最多下载的字节数, 小于等于0表示不限速, 下载过程中修改立即生效
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        mRateLimiter.setRate(maxBytesPerSecond);
+    }
+
+    /**
+     * @param algorithm      摘要算法, 例如 SHA-256、MD5, 为null时不计算摘要
+     * @param expectedDigest 期望的摘要(十六进制), 为null时只计算摘要不校验
+     */
+    public void setDigest(String algorithm, String expectedDigest) {
+        this.mDigestAlgorithm = algorithm;
+        this.mExpectedDigest = expectedDigest;
+    }
+
+    /**
+     * @param version 文件的版本, 与URL一起作为缓存的key
+     */
+    public void setVersion(String version) {
+        this.mVersion = version;
+    }
+
+    /**
+     * @param artifactCache 下载完成的文件缓存, 为null时不使用缓存
+     */
+    public void setArtifactCache(ArtifactCache artifactCache) {
+        this.mArtifactCache = artifactCache;
+    }
+
+    /**
+     * @return 下载完成的文件摘要(十六进制小写), 没有设置摘要算法或者还没有下载完成时返回null
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+    public void setOnDownloadListener(DownloadListener listener) {
+        this.mDownloadListener = listener;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getFilePath() {
+        return mFilePath;
+    }
+
+    public boolean isDownloadRunning() {
+        return isDownloadRunning;
+    }
+
+    /**
+     * @return 最近一次下载的指标, 下载过程中可以随时获取快照 {@link DownloadMetrics#snapshot()}
+     */
+    public DownloadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return 最近一次回调的下载进度, 包含平滑后的速度和剩余时间, 还没有进度时为null
+     */
+    @Nullable
+    public DownloadProgress getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * @return 任务状态, 下载结束后为 {@link #STATE_STOPPED}、{@link #STATE_SUCCEEDED} 或者 {@link #STATE_FAILED}
+     */
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * 记录进入等待队列的时间, 开始下载时计算排队时间
+     */
+    void markQueued() {
+        mQueuedTime = System.nanoTime();
+        mState = STATE_QUEUED;
+    }
+
+    /**
+     * 输出任务的状态, 只读取volatile和原子变量, 不会阻塞下载线程
+     *
+     * @param writer 输出
+     * @param prefix 每一行的前缀
+     */
+    void dump(PrintWriter writer, String prefix) {
+        DownloadMetrics.Snapshot snapshot = mMetrics.snapshot();
+        long[] samples = snapshot.getThroughputSamples();
+        long rate = samples.length == 0 ? 0 : samples[samples.length - 1];
+        writer.println(prefix + "state=" + STATE_NAMES[mState] + " url=" + mUrl);
+        writer.println(prefix + "bytes=" + mDownloadedSize.get() + "/" + mTotalSize
+                + " rate=" + rate + "B/s avg=" + snapshot.getAverageThroughput() + "B/s"
+                + " elapsed=" + snapshot.getElapsedTime() + "ms");
+        Thread thread = mThread;
+        if (thread != null) {
+            writer.println(prefix + "thread=" + thread.getName() + " (" + thread.getState() + ")");
+        }
+        DownloadProgress progress = mProgress;
+        if (progress != null) writer.println(prefix + progress);
+        String lastError = mLastError;
+        if (lastError != null) writer.println(prefix + "lastError=" + lastError);
+        Segment[] segments = mSegments;
+        for (int i = 0; i < segments.length; i++) {
+            writer.println(prefix + "segment#" + i + " " + segments[i].describe());
+        }
+        writer.println(prefix + "metrics: " + snapshot);
+    }
+
+    /**
+     * 开始下载, 数据先写入临时文件, 全部下载完成后重命名为下载文件.
+     * 存在断点记录时只下载记录中缺失的区间, 否则重新下载
+     */
+    private void download() {
+        synchronized (this) {
+            if (isDownloadRunning) return;
+            if (isStopped) {
+                // 开始下载之前已经停止
+                mState = STATE_STOPPED;
+                return;
+            }
+            isDownloadRunning = true;
+        }
+
+        DownloadMetrics metrics = new DownloadMetrics(mUrl);
+        long queuedTime = mQueuedTime;
+        mQueuedTime = 0;
+        if (queuedTime != 0) metrics.recordQueueWait((System.nanoTime() - queuedTime) / 1000000);
+        mMetrics = metrics;
+        mState = STATE_RUNNING;
+        mLastError = null;
+        mSegments = new Segment[0];
+        mThread = Thread.currentThread();
+        try {
+            downloadFile();
+        } finally {
+            mThread = null;
+            if (mState == STATE_RUNNING) mState = STATE_STOPPED;
+            metrics.finish();
+            DownloadMetrics.Snapshot snapshot = metrics.snapshot();
+            Log.d(TAG, "下载指标: " + snapshot);
+            DownloadMetrics.Listener listener = DownloadConfig.getMetricsListener();
+            if (listener != null) listener.onMetrics(snapshot);
+        }
+    }
+
+    private void downloadFile() {
+        File parent = new File(mFilePath);
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+
+        String fileName = mUrl.substring(mUrl.lastIndexOf("/") + 1);
+        if (!fileName.endsWith(".apk")) {
+            fileName = fileName + ".apk";
+        }
+        mDownloadFile = new File(parent, fileName);
+        File partFile = new File(mDownloadFile.getPath() + PART_SUFFIX);
+        File journalFile = new File(mDownloadFile.getPath() + DownloadJournal.SUFFIX);
+
+        Log.d(TAG, "下载文件路径: " + mDownloadFile.getAbsolutePath());
+        String validator = getCacheValidator();
+        if (validator != null && copyFromCache(validator, partFile, journalFile)) return;
+        mTransport = DownloadConfig.getHttpTransport();
+
+        // 文件已经下载过时使用条件请求确认服务器文件是否改变, 没有改变时不需要重新下载
+        DownloadJournal completedJournal = DownloadJournal.loadCompleted(journalFile, mDownloadFile, mUrl);
+        if (completedJournal != null && revalidate(completedJournal)) return;
+
+        DownloadJournal journal = DownloadJournal.load(journalFile, partFile, mUrl);
+        if (journal == null) {
+            // 没有可用的断点记录时无法确定临时文件中哪些数据有效, 重新下载
+            deleteFile(partFile);
+            deleteFile(journalFile);
+            deleteFile(mDownloadFile);
+            journal = new DownloadJournal(journalFile, partFile, mUrl);
+        } else {
+            Log.d(TAG, "读取断点记录, 已下载文件大小: " + journal.getCompletedSize()
+                    + ", 文件总大小: " + journal.getLength());
+        }
+
+        DownloadDigest digest = null;
+        mDigest = null;
+        if (mDigestAlgorithm != null) {
+            try {
+                digest = new DownloadDigest(mDigestAlgorithm, mExpectedDigest);
+            } catch (NoSuchAlgorithmException e) {
+                sendDownloadFailedMessage("不支持的摘要算法: " + mDigestAlgorithm);
+                return;
+            }
+        }
+        mDownloadDigest = digest;
+
+        int segmentCount = chooseSegmentCount(journal, partFile);
+
+        Result result;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(partFile, "rw")) {
+            mRandomAccessFile = randomAccessFile;
+            mFileChannel = randomAccessFile.getChannel();
+            result = downloadRanges(journal, segmentCount);
+            if (result.mCode == Result.RESTART && isDownloadRunning) {
+                // 服务器不支持Range请求或文件已改变, 清空记录后从头开始单线程下载
+                Log.d(TAG, "断点数据不可用, 重新下载: " + result.mErrorMsg);
+                mMetrics.recordRetry();
+                journal.reset();
+                mFileChannel.truncate(0);
+                if (digest != null) digest.reset();
+                result = downloadRanges(journal, 1);
+            }
+            if (digest != null && result.mCode == Result.SUCCESS && isDownloadRunning
+                    && journal.isCompleted()) {
+                // 计算还没有按顺序更新到摘要中的数据, 通常只有最后写入的少量数据
+                digest.catchUp(mFileChannel, journal.getLength());
+                mDigest = digest.digest(journal.getLength());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            result = new Result(Result.FAILED, e.getMessage());
+        } finally {
+            mRandomAccessFile = null;
+            mFileChannel = null;
+            mDownloadDigest = null;
+        }
+
+        if (!isDownloadRunning) {
+            // 停止下载时关闭连接导致的读取错误不是下载失败
+            journal.flush();
+            Log.d(TAG, "下载已停止, 已下载文件大小: " + journal.getCompletedSize());
+        } else if (result.mCode == Result.FAILED || result.mCode == Result.RESTART) {
+            journal.flush();
+            sendDownloadFailedMessage(result.mErrorMsg);
+        } else if (!journal.isCompleted()) {
+            journal.flush();
+            sendDownloadFailedMessage("文件大小与服务器文件大小不一致");
+        } else if (digest != null && !digest.matches(mDigest)) {
+            // 下载的数据已损坏, 删除临时文件和断点记录, 下次重新下载
+            journal.delete();
+            deleteFile(partFile);
+            sendDownloadFailedMessage("文件校验失败, 期望的" + digest.getAlgorithm() + ": "
+                    + mExpectedDigest + ", 实际: " + mDigest);
+        } else if (!partFile.renameTo(mDownloadFile)) {
+            journal.flush();
+            sendDownloadFailedMessage("重命名下载文件失败");
+        } else {
+            // 保留校验信息, 再次下载时使用条件请求
+            journal.saveCompleted(mDownloadFile, mDigestAlgorithm, mDigest);
+            if (validator != null) putToCache(validator);
+            publishProgress(journal.getLength(), true);
+            sendDownloadSuccessMessage();
+        }
+    }
+
+    /**
+     * 使用If-None-Match和If-Modified-Since请求已下载完成的文件, 服务器返回304时文件没有改变,
+     * 直接使用已下载的文件. 请求只包含第一个字节的Range, 文件已改变时不会传输整个文件,
+     * 响应同时作为Range探测的结果 {@link RangeCapabilityCache}, 重新下载时不需要再探测
+     *
+     * @param journal 已下载完成的文件的记录
+     * @return 是否已处理, 文件没有改变或者下载已停止时返回true, 需要重新下载时返回false
+     */
+    private boolean revalidate(DownloadJournal journal) {
+        Map<String, String> requestHeaders = new HashMap<>();
+        if (journal.getETag() != null) requestHeaders.put("If-None-Match", journal.getETag());
+        if (journal.getLastModified() != null) {
+            requestHeaders.put("If-Modified-Since", journal.getLastModified());
+        }
+        requestHeaders.put("Range", "bytes=0-0");
+        HttpTransport.Response response = null;
+        try {
+            response = execute(requestHeaders);
+            if (response.getCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(TAG, "服务器文件已改变, 重新下载: " + response.getCode());
+                RangeCapabilityCache.getInstance().record(mUrl, response);
+                return false;
+            }
+        } catch (IOException e) {
+            if (!isDownloadRunning) return true;
+            Log.d(TAG, "确认服务器文件是否改变失败, 重新下载: " + e.getMessage());
+            return false;
+        } finally {
+            closeResponse(response);
+        }
+
+        long length = journal.getLength();
+        mDigest = null;
+        if (mDigestAlgorithm != null) {
+            // 优先使用下载完成时保存的摘要, 之前的版本没有保存摘要时读取文件计算一次并保存
+            String digest = journal.getDigest(mDigestAlgorithm);
+            if (digest == null) {
+                digest = computeDigest(length);
+                if (digest == null) return false;
+                journal.saveCompleted(mDownloadFile, mDigestAlgorithm, digest);
+            }
+            if (mExpectedDigest != null && !mExpectedDigest.equalsIgnoreCase(digest)) {
+                Log.d(TAG, "已下载的文件校验失败, 重新下载");
+                return false;
+            }
+            mDigest = digest;
+        }
+        Log.d(TAG, "服务器文件没有改变, 使用已下载的文件");
+        mTotalSize = length;
+        mDownloadedSize.set(length);
+        publishProgress(length, true);
+        sendDownloadSuccessMessage();
+        return true;
+    }
+
+    /**
+     * 读取已下载完成的文件计算摘要
+     *
+     * @param length 文件大小
+     * @return 摘要(十六进制小写), 读取失败时返回null
+     */
+    private String computeDigest(long length) {
+        try (RandomAccessFile file = new RandomAccessFile(mDownloadFile, "r")) {
+            DownloadDigest digest = new DownloadDigest(mDigestAlgorithm, null);
+            digest.catchUp(file.getChannel(), length);
+            return digest.digest(length);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.d(TAG, "计算已下载文件的摘要失败, 重新下载: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 断点续传时的If-Range校验值, 服务器文件没有改变时返回206, 已改变时返回完整的文件.
+     * 弱校验的ETag不能用于If-Range, 此时使用Last-Modified
+     *
+     * @param journal 断点记录
+     * @return If-Range的值, 没有校验信息时返回null
+     */
+    private static String getIfRange(DownloadJournal journal) {
+        if (journal.getLength() <= 0) return null;
+        String eTag = journal.getETag();
+        if (eTag != null && !eTag.startsWith("W/")) return eTag;
+        return journal.getLastModified();
+    }
+
+    /**
+     * @return 缓存的校验值, 优先使用文件的版本, 其次使用期望的摘要, 都没有设置或者没有缓存时返回null
+     */
+    private String getCacheValidator() {
+        if (mArtifactCache == null) return null;
+        if (mVersion != null) return ArtifactCache.versionValidator(mVersion);
+        if (mDigestAlgorithm != null && mExpectedDigest != null) {
+            return ArtifactCache.digestValidator(mDigestAlgorithm, mExpectedDigest);
+        }
+        return null;
+    }
+
+    /**
+     * 命中缓存时将缓存的文件复制到下载文件, 缓存的文件是完整写入的, 不需要重新计算摘要
+     *
+     * @return 是否命中缓存
+     */
+    private boolean copyFromCache(String validator, File partFile, File journalFile) {
+        try {
+            if (!mArtifactCache.copyTo(mUrl, validator, mDownloadFile)) return false;
+        } catch (IOException e) {
+            Log.w(TAG, "读取缓存失败, 重新下载: " + e.getMessage());
+            return false;
+        }
+        Log.d(TAG, "命中缓存, 不需要下载");
+        deleteFile(partFile);
+        deleteFile(journalFile);
+        if (mDigestAlgorithm != null && mExpectedDigest != null) {
+            mDigest = mExpectedDigest.toLowerCase(Locale.US);
+        }
+        long length = mDownloadFile.length();
+        mTotalSize = length;
+        mDownloadedSize.set(length);
+        publishProgress(length, true);
+        sendDownloadSuccessMessage();
+        return true;
+    }
+
+    /**
+     * 下载完成的文件写入缓存, 写入失败不影响下载结果
+     */
+    private void putToCache(String validator) {
+        try {
+            mArtifactCache.put(mUrl, validator, mDownloadFile);
+        } catch (IOException e) {
+            Log.w(TAG, "写入缓存失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 下载断点记录中缺失的区间. 文件大小已知时将缺失的区间切分为多个分段, 每个分段使用单独的Range请求并发下载,
+     * 并写入文件中对应的位置; 文件大小未知时使用一个不限制结束位置的请求单线程下载
+     *
+     * @param journal      断点记录
+     * @param segmentCount 分段数量
+     * @return 下载结果
+     * @throws IOException 预分配文件空间失败
+     */
+    private Result downloadRanges(DownloadJournal journal, int segmentCount) throws IOException {
+        List<long[]> ranges;
+        if (journal.getLength() > 0) {
+            allocateFile(journal.getLength());
+            ranges = splitRanges(journal.getMissingRanges(), segmentCount);
+        } else {
+            ranges = new ArrayList<>();
+            ranges.add(new long[]{0, -1});
+        }
+        mTotalSize = journal.getLength();
+        mDownloadedSize.set(journal.getCompletedSize());
+        isSegmentAborted = false;
+        if (ranges.isEmpty()) return new Result(Result.SUCCESS, null);
+
+        Log.d(TAG, "下载文件大小: " + mTotalSize + ", 分段数量: " + ranges.size());
+        Segment[] segments = new Segment[ranges.size()];
+        CountDownLatch latch = new CountDownLatch(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            long[] range = ranges.get(i);
+            segments[i] = new Segment(journal, range[0], range[1], segments.length > 1, latch);
+        }
+        mSegments = segments;
+        if (segments.length == 1) {
+            segments[0].run();
+        } else {
+            for (Segment segment : segments) {
+                SEGMENT_EXECUTOR.execute(segment);
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                isDownloadRunning = false;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 优先返回需要重新下载的结果, 其次是错误信息
+        Result result = new Result(Result.SUCCESS, null);
+        for (Segment segment : segments) {
+            if (segment.mResult.mCode == Result.RESTART) return segment.mResult;
+            if (segment.mResult.mCode == Result.FAILED && result.mCode == Result.SUCCESS) {
+                result = segment.mResult;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 将缺失的区间切分为不超过分段数量的分段, 每次切分最大的区间, 直到达到分段数量或者区间太小
+     *
+     * @param missingRanges 缺失的区间
+     * @param segmentCount  分段数量
+     * @return 切分后的区间
+     */
+    private List<long[]> splitRanges(List<long[]> missingRanges, int segmentCount) {
+        List<long[]> ranges = new ArrayList<>(missingRanges);
+        while (ranges.size() < segmentCount) {
+            int largest = -1;
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                if (largest < 0 || range[1] - range[0] > ranges.get(largest)[1] - ranges.get(largest)[0]) {
+                    largest = i;
+                }
+            }
+            if (largest < 0) break;
+            long[] range = ranges.get(largest);
+            if (range[1] - range[0] < 2 * MIN_SEGMENT_SIZE) break;
+            long middle = range[0] + (range[1] - range[0]) / 2;
+            ranges.set(largest, new long[]{range[0], middle});
+            ranges.add(largest + 1, new long[]{middle, range[1]});
+        }
+        return ranges;
+    }
+
+    /**
+     * 根据缓存的探测结果 {@link RangeCapabilityCache} 选择下载方式, 没有缓存并且需要分段下载时先探测一次.
+     * 服务器支持Range请求并且文件大小已知时分段下载; 该地址不支持Range请求时单线程下载, 已下载的数据不可用, 从头开始;
+     * 探测到的文件与断点记录不一致时文件已改变, 从头开始. 只有同一个Host的其它地址不支持Range请求时,
+     * 不探测并且单线程下载, 保留已下载的数据, 服务器的响应表明不能断点续传时再从头开始
+     *
+     * @param journal  断点记录
+     * @param partFile 下载数据写入的临时文件
+     * @return 分段数量
+     */
+    private int chooseSegmentCount(DownloadJournal journal, File partFile) {
+        int segmentCount = mSegmentCount > 0 ? mSegmentCount : DownloadConfig.getSegmentCount();
+        RangeCapabilityCache capabilityCache = RangeCapabilityCache.getInstance();
+        RangeCapabilityCache.Capability capability = capabilityCache.get(mUrl);
+        boolean isUnsupportedHost = capability == null && capabilityCache.isUnsupportedHost(mUrl);
+        if (capability == null && segmentCount > 1 && journal.getLength() <= 0 && !isUnsupportedHost) {
+            capability = probeCapability();
+        }
+
+        if (capability == null) {
+            return isUnsupportedHost || journal.getLength() <= 0 ? 1 : segmentCount;
+        }
+        if (!capability.isRangeSupported()) {
+            if (journal.getCompletedSize() > 0) {
+                Log.d(TAG, "服务器不支持Range请求, 重新下载");
+                journal.reset();
+                deleteFile(partFile);
+            }
+            return 1;
+        }
+        if (journal.getLength() > 0 && !capability.matches(journal)) {
+            Log.d(TAG, "服务器文件已改变, 重新下载");
+            journal.reset();
+            deleteFile(partFile);
+        }
+        if (journal.getLength() <= 0 && capability.getLength() > 0) {
+            journal.init(capability.getLength(), capability.getETag(), capability.getLastModified());
+        }
+        return journal.getLength() > 0 ? segmentCount : 1;
+    }
+
+    /**
+     * 使用只请求第一个字节的Range请求探测服务器是否支持Range请求、文件总大小和校验信息, 结果保存到缓存中
+     *
+     * @return 探测结果, 请求失败时返回null
+     */
+    private RangeCapabilityCache.Capability probeCapability() {
+        Map<String, String> requestHeaders = new HashMap<>();
+        requestHeaders.put("Range", "bytes=0-0");
+        HttpTransport.Response response = null;
+        try {
+            response = execute(requestHeaders);
+            RangeCapabilityCache.Capability capability =
+                    RangeCapabilityCache.getInstance().record(mUrl, response);
+            if (capability != null && !capability.isRangeSupported()) {
+                Log.d(TAG, "服务器不支持Range请求, 使用单线程下载");
+            }
+            return capability;
+        } catch (IOException e) {
+            if (isDownloadRunning) e.printStackTrace();
+            return null;
+        } finally {
+            closeResponse(response);
+        }
+    }
+
+    /**
+     * 发送GET请求, 请求期间停止下载时关闭连接. 原始地址有缓存的重定向地址 {@link RedirectCache} 时直接请求重定向地址
+     *
+     * @param headers 请求头部信息
+     * @return 响应, 使用完成后调用 {@link #closeResponse(HttpTransport.Response)}
+     * @throws IOException 请求失败或者下载已停止
+     */
+    private HttpTransport.Response execute(Map<String, String> headers) throws IOException {
+        RedirectCache redirectCache = RedirectCache.getInstance();
+        String targetUrl = redirectCache.get(mUrl);
+        HttpTransport.Response response = null;
+        if (targetUrl != null) {
+            // 直接请求上一次重定向后的最终地址, 失败时重新请求原始地址
+            try {
+                response = execute(targetUrl, headers);
+                if (response.getCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    Log.d(TAG, "重定向地址请求失败: " + response.getCode() + ", 请求原始地址");
+                    response.close();
+                    response = null;
+                }
+            } catch (IOException e) {
+                if (!isDownloadRunning) throw new InterruptedIOException("下载已停止");
+                Log.d(TAG, "重定向地址请求失败: " + e.getMessage() + ", 请求原始地址");
+            }
+            if (response == null) {
+                redirectCache.invalidate(mUrl);
+                mMetrics.recordRetry();
+            }
+        }
+        if (response == null) {
+            response = execute(mUrl, headers);
+            if (response.getCode() < HttpURLConnection.HTTP_BAD_REQUEST) {
+                redirectCache.put(mUrl, response.getUrl());
+            }
+        }
+        mActiveResponses.add(response);
+        // 连接建立期间调用了stop(), 此时响应还没有加入集合, 需要在这里关闭
+        if (!isDownloadRunning) {
+            closeResponse(response);
+            throw new InterruptedIOException("下载已停止");
+        }
+        return response;
+    }
+
+    /**
+     * 发送一次请求并记录请求的耗时
+     */
+    private HttpTransport.Response execute(String url, Map<String, String> headers) throws IOException {
+        long startTime = System.nanoTime();
+        HttpTransport.Response response = mTransport.execute(url, HttpTransport.GET, headers,
+                CONNECT_TIMEOUT, READ_TIMEOUT);
+        mMetrics.recordRequest(RequestTiming.of(response), System.nanoTime() - startTime);
+        return response;
+    }
+
+    private void closeResponse(HttpTransport.Response response) {
+        if (response == null) return;
+        mActiveResponses.remove(response);
+        if (!isDownloadRunning) response.cancel();
+        // 数据已读取完成的连接归还到连接池
+        response.close();
+    }
+
+    /**
+     * 预先分配文件的全部空间, 避免边下载边扩展文件造成的磁盘碎片, 存储空间不足时立即失败.
+     * 优先使用fallocate分配真实的磁盘块, 文件系统不支持时退化为设置文件长度
+     *
+     * @param length 文件总大小
+     * @throws IOException 存储空间不足或者分配失败
+     */
+    private synchronized void allocateFile(long length) throws IOException {
+        long size = mFileChannel.size();
+        if (size >= length) return;
+        long usableSpace = mDownloadFile.getParentFile().getUsableSpace();
+        if (length - size > usableSpace) {
+            throw new IOException("存储空间不足, 需要: " + (length - size) + ", 可用: " + usableSpace);
+        }
+        try {
+            Os.posix_fallocate(mRandomAccessFile.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("存储空间不足, 需要: " + (length - size));
+            }
+            Log.d(TAG, "文件系统不支持fallocate, 设置文件长度: " + length);
+            mRandomAccessFile.setLength(length);
+        }
+    }
+
+    /**
+     * 将缓冲区中剩余的数据全部写入文件中的指定位置, 不改变FileChannel的位置
+     *
+     * @param channel  文件
+     * @param buffer   读模式的缓冲区
+     * @param position 写入文件的位置, 可以超过2GB
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "删除文件失败: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 分段的下载结果
+     */
+    private static class Result {
+
+        static final int SUCCESS = 0;
+        static final int FAILED = 1;
+
+        /**
+         * 已下载的数据不可用(服务器不支持Range请求或者文件已改变), 需要从头开始下载
+         */
+        static final int RESTART = 2;
+
+        private final int mCode;
+        private final String mErrorMsg;
+
+        Result(int code, String errorMsg) {
+            mCode = code;
+            mErrorMsg = errorMsg;
+        }
+    }
+
+    /**
+     * 下载文件中的一个分段, 对应一个Range请求, 下载的数据写入文件中该分段的起始位置,
+     * 每次写入后将写入的区间记录到断点记录中
+     */
+    private class Segment implements Runnable {
+
+        private final DownloadJournal mJournal;
+        private final long mStart;
+
+        /**
+         * 分段的结束位置(不包含), 小于0时表示文件大小未知, 读取到数据流结束为止
+         */
+        private final long mEnd;
+
+        /**
+         * 是否有多个分段同时下载, 多个分段时服务器必须支持Range请求
+         */
+        private final boolean isMultiple;
+        private final CountDownLatch mLatch;
+
+        private volatile Result mResult = new Result(Result.SUCCESS, null);
+
+        /**
+         * 根据吞吐量选择读取缓冲区的大小, 以及最近一次填充缓冲区时调用读取的次数
+         */
+        private final BufferSizer mBufferSizer = new BufferSizer();
+        private int mReadCount = 0;
+
+        /**
+         * 已写入到的位置、执行分段的线程和分段是否已结束, 只用于 {@link #dump(PrintWriter, String)}
+         */
+        private volatile long mWrittenPosition;
+        private volatile String mThreadName;
+        private volatile boolean isFinished = false;
+
+        Segment(DownloadJournal journal, long start, long end, boolean multiple,
+                CountDownLatch latch) {
+            mJournal = journal;
+            mStart = start;
+            mEnd = end;
+            isMultiple = multiple;
+            mLatch = latch;
+            mWrittenPosition = start;
+        }
+
+        @Override
+        public void run() {
+            mThreadName = Thread.currentThread().getName();
+            HttpTransport.Response response = null;
+            try {
+                Map<String, String> requestHeaders = new HashMap<>();
+                requestHeaders.put("Range", "bytes=" + mStart + "-" + (mEnd > 0 ? mEnd - 1 : ""));
+                requestHeaders.put("Charset", "UTF-8");
+                String ifRange = getIfRange(mJournal);
+                if (ifRange != null) requestHeaders.put("If-Range", ifRange);
+                response = execute(requestHeaders);
+                Log.d(TAG, "下载文件Url: " + mUrl);
+
+                int responseCode = response.getCode();
+                Log.d(TAG, "分段请求结果: " + responseCode + ", 分段区间: " + mStart + "-" + mEnd);
+                if (ifRange == null) {
+                    // 更新服务器是否支持Range请求, 下次下载时直接选择下载方式
+                    RangeCapabilityCache.getInstance().record(mUrl, response);
+                } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                    // If-Range不匹配, 服务器文件已改变
+                    RangeCapabilityCache.getInstance().invalidate(mUrl);
+                }
+
+                if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                    String contentRange = response.getHeader("Content-Range");
+                    long rangeStart = RangeCapabilityCache.parseContentRangeStart(contentRange);
+                    if (rangeStart >= 0 && rangeStart != mStart) {
+                        // 返回的数据不是从请求的位置开始, 写入会破坏文件
+                        abort(Result.RESTART, "服务器返回的区间与请求不一致: " + contentRange);
+                    } else if (!checkValidators(response)) {
+                        abort(Result.RESTART, "服务器文件已改变");
+                    } else {
+                        writeStreamToFile(response, mStart, mEnd > 0 ? mEnd : mJournal.getLength());
+                    }
+                } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                    if (isMultiple) {
+                        // 服务器文件已改变(If-Range不匹配)或者不支持Range请求, 返回的是完整的文件
+                        abort(Result.RESTART, "服务器不支持Range请求或文件已改变");
+                    } else {
+                        if (mStart > 0) {
+                            // 只有一个分段时直接使用返回的完整文件从头开始下载, 不需要再次请求
+                            Log.d(TAG, "服务器不支持Range请求或文件已改变, 从头开始下载");
+                            resetDownloadedData();
+                            mMetrics.recordRetry();
+                        }
+                        long contentLength = response.getContentLength();
+                        mJournal.init(contentLength > 0 ? contentLength : -1,
+                                response.getHeader("ETag"), response.getHeader("Last-Modified"));
+                        mTotalSize = mJournal.getLength();
+                        if (mTotalSize > 0) allocateFile(mTotalSize);
+                        writeStreamToFile(response, 0, mJournal.getLength());
+                    }
+                } else if (responseCode == 416) {
+                    abort(Result.FAILED, "超出文件范围 " + response.getHeader("Content-Range"));
+                } else {
+                    abort(Result.FAILED, "HTTP请求错误 " + responseCode);
+                }
+            } catch (IOException e) {
+                // 停止下载时连接被关闭, 读取会抛出异常, 不作为下载失败处理
+                if (isDownloadRunning) {
+                    abort(Result.FAILED, e.getMessage());
+                    e.printStackTrace();
+                }
+            } finally {
+                closeResponse(response);
+                isFinished = true;
+                mLatch.countDown();
+            }
+        }
+
+        /**
+         * @return 分段的区间、已写入的字节数、线程和结果
+         */
+        String describe() {
+            Result result = mResult;
+            String state = !isFinished ? "running" : result.mCode == Result.SUCCESS ? "done"
+                    : result.mCode == Result.RESTART ? "restart" : "failed";
+            return "[" + mStart + ", " + (mEnd > 0 ? mEnd : "?") + ") written="
+                    + (mWrittenPosition - mStart) + " thread=" + mThreadName + " " + state
+                    + (result.mErrorMsg == null ? "" : " (" + result.mErrorMsg + ")");
+        }
+
+        /**
+         * 校验响应的ETag和Last-Modified与断点记录是否一致, 文件大小未知时使用响应的信息初始化断点记录
+         *
+         * @return 服务器文件是否没有改变
+         */
+        private boolean checkValidators(HttpTransport.Response response) throws IOException {
+            String eTag = response.getHeader("ETag");
+            String lastModified = response.getHeader("Last-Modified");
+            if (mJournal.getLength() <= 0) {
+                mJournal.init(RangeCapabilityCache.parseContentRangeTotal(response.getHeader("Content-Range")),
+                        eTag, lastModified);
+                mTotalSize = mJournal.getLength();
+                if (mTotalSize > 0) allocateFile(mTotalSize);
+                return true;
+            }
+            if (eTag != null && mJournal.getETag() != null) {
+                return eTag.equals(mJournal.getETag());
+            }
+            return lastModified == null || mJournal.getLastModified() == null
+                    || lastModified.equals(mJournal.getLastModified());
+        }
+
+        /**
+         * 清空断点记录和已下载的数据, 摘要从头开始计算
+         */
+        private void resetDownloadedData() throws IOException {
+            mJournal.reset();
+            mFileChannel.truncate(0);
+            if (mDownloadDigest != null) mDownloadDigest.reset();
+            mDownloadedSize.set(0);
+        }
+
+        private void abort(int code, String errorMsg) {
+            mResult = new Result(code, errorMsg);
+            isSegmentAborted = true;
+        }
+
+        /**
+         * 保存文件. 读取到共享池中的直接内存缓冲区, 填满后通过FileChannel一次写入文件中的指定位置.
+         * 按位置写入不改变FileChannel的位置, 多个分段可以同时写入同一个文件而不需要加锁.
+         * {@link DownloadConfig#getPipelineDepth()} 大于1时读取和写入在不同的线程中同时进行 {@link WritePipeline}
+         *
+         * @param response 获取下载文件流
+         * @param position 写入文件的起始位置
+         * @param end      写入文件的结束位置(不包含), 小于等于0时读取到数据流结束为止
+         */
+        private void writeStreamToFile(HttpTransport.Response response, long position, long end)
+                throws IOException {
+            try (ReadableByteChannel channel = Channels.newChannel(response.getBody())) {
+                if (DownloadConfig.getPipelineDepth() > 1) {
+                    position = pipeToFile(channel, position, end);
+                } else {
+                    position = copyToFile(channel, position, end);
+                }
+                if (!isDownloadRunning || isSegmentAborted) return;
+                if (end <= 0) {
+                    // 文件大小未知时, 读取到数据流结束即为文件大小
+                    mJournal.setLength(position);
+                    mTotalSize = position;
+                } else if (position != end) {
+                    abort(Result.FAILED, "文件大小与服务器文件大小不一致");
+                }
+            }
+        }
+
+        /**
+         * @return 本次读取的最大字节数, 已经读取完成时返回0
+         */
+        private long nextLimit(long position, long end) {
+            if (!isDownloadRunning || isSegmentAborted) return 0;
+            int size = mBufferSizer.getSize();
+            return end > 0 ? Math.min(size, end - position) : size;
+        }
+
+        /**
+         * 根据本次读取的吞吐量调整下一次读取的缓冲区大小
+         *
+         * @param count   读取的字节数
+         * @param limit   请求读取的字节数
+         * @param elapsed 读取的耗时(纳秒)
+         */
+        private void onBufferFilled(long count, long limit, long elapsed) {
+            int oldSize = mBufferSizer.getSize();
+            int size = mBufferSizer.onRead(count, mReadCount, elapsed, count == limit);
+            mMetrics.recordBytesRead(count);
+            mMetrics.recordBufferSize(size);
+            if (size != oldSize) {
+                Log.d(TAG, "调整缓冲区大小: " + oldSize / 1024 + "KB -> " + size / 1024
+                        + "KB, 吞吐量: " + mBufferSizer.getThroughput() + "B/s");
+            }
+        }
+
+        /**
+         * 在当前线程中交替读取和写入, 读取时磁盘空闲, 写入时网络读取停顿
+         *
+         * @return 写入完成后的位置
+         */
+        private long copyToFile(ReadableByteChannel channel, long position, long end)
+                throws IOException {
+            ByteBuffer buffer = null;
+            long readTime = 0, writeTime = 0;
+            try {
+                long limit;
+                while ((limit = nextLimit(position, end)) > 0) {
+                    int size = mBufferSizer.getSize();
+                    if (buffer == null || buffer.capacity() != size) {
+                        ByteBufferPool.getInstance().release(buffer);
+                        buffer = ByteBufferPool.getInstance().acquire(size);
+                    }
+                    limit = acquireBandwidth(limit);
+                    long startTime = System.nanoTime();
+                    int count = fillBuffer(channel, buffer, (int) limit);
+                    long readEndTime = System.nanoTime();
+                    readTime += readEndTime - startTime;
+                    releaseBandwidth(limit - Math.max(count, 0));
+                    if (count < 0) break;
+                    onBufferFilled(count, limit, readEndTime - startTime);
+                    writeBuffer(buffer, position);
+                    writeTime += System.nanoTime() - readEndTime;
+                    position += count;
+                }
+            } finally {
+                ByteBufferPool.getInstance().release(buffer);
+                // 同一个线程中读取时写入停顿, 写入时读取停顿
+                mMetrics.recordStall(writeTime / 1000000, readTime / 1000000);
+            }
+            return position;
+        }
+
+        /**
+         * 当前线程只读取网络数据, 由写入线程按顺序写入文件, 所有缓冲区都在等待写入时停止读取
+         *
+         * @return 读取完成后的位置, 返回时已全部写入
+         */
+        private long pipeToFile(ReadableByteChannel channel, long position, long end)
+                throws IOException {
+            WritePipeline pipeline = new WritePipeline(DownloadConfig.getPipelineDepth(),
+                    new WritePipeline.Sink() {
+                        @Override
+                        public void write(ByteBuffer buffer, long position) throws IOException {
+                            writeBuffer(buffer, position);
+                        }
+                    });
+            boolean isFinished = false;
+            try {
+                long limit;
+                while ((limit = nextLimit(position, end)) > 0) {
+                    ByteBuffer buffer = pipeline.acquire(mBufferSizer.getSize());
+                    limit = acquireBandwidth(limit);
+                    long startTime = System.nanoTime();
+                    int count = fillBuffer(channel, buffer, (int) limit);
+                    long elapsed = System.nanoTime() - startTime;
+                    releaseBandwidth(limit - Math.max(count, 0));
+                    if (count < 0) {
+                        pipeline.recycle(buffer);
+                        break;
+                    }
+                    onBufferFilled(count, limit, elapsed);
+                    pipeline.submit(buffer, position);
+                    position += count;
+                }
+                pipeline.finish();
+                isFinished = true;
+            } finally {
+                if (!isFinished) pipeline.cancel();
+                mMetrics.recordStall(pipeline.getReaderStallTime(), pipeline.getWriterStallTime());
+            }
+            return position;
+        }
+
+        /**
+         * 将缓冲区中的数据写入文件中的指定位置, 更新摘要、断点记录和进度
+         *
+         * @param buffer   读模式的缓冲区
+         * @param position 写入文件的位置
+         */
+        private void writeBuffer(ByteBuffer buffer, long position) throws IOException {
+            int count = buffer.remaining();
+            if (mDownloadDigest != null) mDownloadDigest.update(buffer, position);
+            writeFully(mFileChannel, buffer, position);
+            onWritten(position, count);
+        }
+
+        /**
+         * 数据已写入文件, 更新摘要、断点记录和进度
+         */
+        private void onWritten(long position, long count) throws IOException {
+            mJournal.markCompleted(position, position + count);
+            if (mDownloadDigest != null) {
+                mDownloadDigest.catchUp(mFileChannel, mJournal.getContiguousLength());
+            }
+            mWrittenPosition = position + count;
+            mMetrics.recordBytesWritten(count);
+            publishProgress(mDownloadedSize.addAndGet(count), false);
+            mJournal.flushIfNeeded();
+        }
+
+        /**
+         * 从任务和全局的限速器获取令牌, 不限速时直接返回
+         *
+         * @param max 最多需要读取的字节数
+         * @return 允许读取的字节数
+         * @throws InterruptedIOException 等待令牌时下载已停止
+         */
+        private long acquireBandwidth(long max) throws InterruptedIOException {
+            while (true) {
+                long granted = mRateLimiter.acquire(max);
+                long globalGranted = granted == 0 ? 0 : DownloadConfig.getRateLimiter().acquire(granted);
+                if (globalGranted < granted) mRateLimiter.release(granted - globalGranted);
+                if (!isDownloadRunning || isSegmentAborted) {
+                    releaseBandwidth(globalGranted);
+                    throw new InterruptedIOException("下载已停止");
+                }
+                // 被其它任务停止时唤醒, 重新等待令牌
+                if (globalGranted > 0) return globalGranted;
+            }
+        }
+
+        private void releaseBandwidth(long unused) {
+            mRateLimiter.release(unused);
+            DownloadConfig.getRateLimiter().release(unused);
+        }
+
+        /**
+         * 从Channel中读取数据直到填满缓冲区或者数据流结束, 读取完成后缓冲区切换为读模式
+         *
+         * @param channel 数据流
+         * @param buffer  缓冲区
+         * @param limit   最多读取的字节数
+         * @return 读取的字节数, 数据流已结束并且没有读取到数据时返回-1
+         */
+        private int fillBuffer(ReadableByteChannel channel, ByteBuffer buffer, int limit)
+                throws IOException {
+            buffer.clear();
+            buffer.limit(limit);
+            mReadCount = 0;
+            while (buffer.hasRemaining() && isDownloadRunning) {
+                mReadCount++;
+                if (channel.read(buffer) == -1) {
+                    if (buffer.position() == 0) return -1;
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.limit();
+        }
+    }
+
+    @SuppressLint("HandlerLeak")
+    private Handler mDownloadCallbackHandler = new Handler() {
+        private int mCurrentPercent = 0;
+
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            switch (msg.what) {
+                case DownloadListener.DOWNLOAD_PROGRESS:
+                    // 下载进度回调, 直接读取下载线程更新的计数, 消息中不携带数据
+                    isProgressPending.set(false);
+                    long alreadyDownloadFileSize = mDownloadedSize.get(), totalSize = mTotalSize;
+                    // 每次进度都更新速度, 回调方不需要自己计算
+                    DownloadProgress progress = mSpeedEstimator.update(totalSize, alreadyDownloadFileSize);
+                    mProgress = progress;
+                    if (mDownloadListener instanceof DownloadProgressListener) {
+                        ((DownloadProgressListener) mDownloadListener).onProgress(progress);
+                        break;
+                    }
+                    // 文件大小未知时没有百分比
+                    int percent = progress.getPercent();
+                    if (percent < 0) break;
+                    if (percent != mCurrentPercent) {
+                        mCurrentPercent = percent;
+                        Log.d(TAG, "下载进度: " + percent);
+                        if (mDownloadListener != null) {
+                            mDownloadListener.onProgress(totalSize, alreadyDownloadFileSize);
+                        }
+                    }
+                    break;
+                case DownloadListener.DOWNLOAD_SUCCESS:
+                    // 下载成功回调
+                    isDownloadRunning = false;
+                    Log.d(TAG, "下载完成: " + mDownloadFile.getAbsolutePath());
+                    if (mDownloadListener != null) {
+                        mDownloadListener.onSuccess(mDownloadFile.getAbsolutePath());
+                    }
+                    break;
+                case DownloadListener.DOWNLOAD_FAILED:
+                    // 下载失败回调
+                    isDownloadRunning = false;
+                    String errorMsg = (String) msg.obj;
+                    Log.e(TAG, "下载失败: " + errorMsg);
+                    if (mDownloadListener != null) {
+                        mDownloadListener.onError(errorMsg);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * 发送下载进度, 距离上一次发送的时间或下载的字节数达到阈值时才发送, 阈值参考
+     * {@link DownloadConfig#setProgressInterval(long)} 和 {@link DownloadConfig#setProgressBytes(long)}.
+     * 同一时间最多只有一条进度消息在主线程排队, 消息从Message池中获取, 每次读取不会分配新的对象
+     *
+     * @param downloadedSize 已下载的文件大小
+     * @param force          是否忽略阈值立即发送, 用于下载完成时发送最终的进度
+     */
+    private void publishProgress(long downloadedSize, boolean force) {
+        long now = SystemClock.uptimeMillis();
+        if (force) {
+            mLastProgressTime.set(now);
+        } else {
+            long lastTime = mLastProgressTime.get();
+            long progressBytes = DownloadConfig.getProgressBytes();
+            boolean isTimeReached = now - lastTime >= DownloadConfig.getProgressInterval();
+            boolean isBytesReached = progressBytes > 0
+                    && downloadedSize - mLastProgressSize.get() >= progressBytes;
+            if (!isTimeReached && !isBytesReached) return;
+            // 多个分段同时达到间隔时只有一个发送进度
+            if (!mLastProgressTime.compareAndSet(lastTime, now)) return;
+        }
+        mLastProgressSize.set(downloadedSize);
+        if (isProgressPending.compareAndSet(false, true)) {
+            mDownloadCallbackHandler.sendEmptyMessage(DownloadListener.DOWNLOAD_PROGRESS);
+        }
+    }
+
+    private void sendDownloadSuccessMessage() {
+        mState = STATE_SUCCEEDED;
+        mDownloadCallbackHandler.sendEmptyMessage(DownloadListener.DOWNLOAD_SUCCESS);
+    }
+
+    private void sendDownloadFailedMessage(@Nullable String errorMsg) {
+        mState = STATE_FAILED;
+        mLastError = errorMsg;
+        mDownloadCallbackHandler.obtainMessage(DownloadListener.DOWNLOAD_FAILED, errorMsg).sendToTarget();
+    }
+}
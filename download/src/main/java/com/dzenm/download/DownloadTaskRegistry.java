@@ -0,0 +1,172 @@
+package com.dzenm.download;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载服务中的下载任务, 主线程、Binder线程和下载线程都可以直接查询, 查询不需要加锁.
+ * 结束(成功、失败或暂停)的任务保留 {@link DownloadConfig#getTaskRetention()} 后移除,
+ * 最多保留 {@link #MAX_FINISHED_TASKS} 个结束的任务, 服务长时间运行时内存占用不会持续增长
+ */
+class DownloadTaskRegistry {
+
+    /**
+     * 最多保留的已结束任务数量, 超出时移除最早结束的任务
+     */
+    static final int MAX_FINISHED_TASKS = 64;
+
+    /**
+     * 下载ID中时间部分的起点(2020-01-01 UTC, 毫秒), 时间部分在2089年之前不会溢出
+     */
+    private static final long ID_EPOCH = 1577836800000L;
+
+    /**
+     * 下载ID低位保存的进程ID的位数, 覆盖Linux允许的最大进程ID(2^22)
+     */
+    private static final int PID_BITS = 22;
+    private static final long PID_MASK = (1L << PID_BITS) - 1;
+
+    /**
+     * 上一次生成的下载ID的时间部分
+     */
+    private static final AtomicLong sLastTime = new AtomicLong();
+
+    private final Map<Long, Entry> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * 生成下载ID, 高位是以当前时间(毫秒)为基准的序号, 同一个进程内单调递增; 低位是当前进程ID,
+     * 多个进程的客户端共享独立进程中的下载服务时, 同一毫秒生成的ID也不会重复.
+     * 进程重启后生成的ID仍然大于之前的ID, 不会与重新传递的Intent中的ID冲突
+     *
+     * @return 下载ID
+     */
+    static long nextId() {
+        long next;
+        while (true) {
+            long last = sLastTime.get();
+            next = Math.max(last + 1, System.currentTimeMillis() - ID_EPOCH);
+            if (sLastTime.compareAndSet(last, next)) break;
+        }
+        return next << PID_BITS | (Process.myPid() & PID_MASK);
+    }
+
+    /**
+     * 添加下载任务, 同时移除已过期的任务
+     *
+     * @param downloadId 下载ID
+     * @param task       下载任务
+     */
+    void register(long downloadId, DownloadTask task) {
+        mEntries.put(downloadId, new Entry(downloadId, task));
+        evictExpired();
+    }
+
+    /**
+     * @param downloadId 下载ID
+     * @return 下载任务, 不存在或者已经被移除时返回null
+     */
+    DownloadTask get(long downloadId) {
+        Entry entry = mEntries.get(downloadId);
+        return entry == null ? null : entry.mTask;
+    }
+
+    /**
+     * @return 所有下载任务, 按下载ID排序. 遍历ConcurrentHashMap不加锁, 可以在任意线程调用
+     */
+    SortedMap<Long, DownloadTask> getTasks() {
+        SortedMap<Long, DownloadTask> tasks = new TreeMap<>();
+        for (Entry entry : mEntries.values()) {
+            tasks.put(entry.mDownloadId, entry.mTask);
+        }
+        return tasks;
+    }
+
+    /**
+     * @param downloadId 下载ID
+     * @return 任务结束的时间({@link SystemClock#uptimeMillis()}), 还没有结束或者不存在时返回-1
+     */
+    long getFinishedTime(long downloadId) {
+        Entry entry = mEntries.get(downloadId);
+        return entry == null ? -1 : entry.mFinishedTime;
+    }
+
+    /**
+     * 标记下载任务已结束, 超过保留时间后移除
+     *
+     * @param downloadId 下载ID
+     */
+    void markFinished(long downloadId) {
+        Entry entry = mEntries.get(downloadId);
+        if (entry != null && entry.mFinishedTime < 0) {
+            entry.mFinishedTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * 移除超过保留时间的任务, 结束的任务数量超过上限时移除最早结束的任务
+     *
+     * @return 距离下一个任务过期的时间(毫秒), 没有结束的任务时返回-1
+     */
+    synchronized long evictExpired() {
+        long now = SystemClock.uptimeMillis();
+        long retention = DownloadConfig.getTaskRetention();
+        long nextExpire = -1;
+        List<Entry> finished = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            long finishedTime = entry.mFinishedTime;
+            if (finishedTime < 0) continue;
+            long remaining = finishedTime + retention - now;
+            if (remaining <= 0) {
+                mEntries.remove(entry.mDownloadId);
+            } else {
+                finished.add(entry);
+                if (nextExpire < 0 || remaining < nextExpire) nextExpire = remaining;
+            }
+        }
+        if (finished.size() > MAX_FINISHED_TASKS) {
+            Collections.sort(finished, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    return Long.compare(o1.mFinishedTime, o2.mFinishedTime);
+                }
+            });
+            for (int i = 0; i < finished.size() - MAX_FINISHED_TASKS; i++) {
+                mEntries.remove(finished.get(i).mDownloadId);
+            }
+        }
+        return nextExpire;
+    }
+
+    /**
+     * @return 当前保存的下载任务数量, 包括还在保留时间内的已结束任务
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    private static class Entry {
+
+        private final long mDownloadId;
+        private final DownloadTask mTask;
+
+        /**
+         * 任务结束的时间, 小于0表示还没有结束
+         */
+        private volatile long mFinishedTime = -1;
+
+        Entry(long downloadId, DownloadTask task) {
+            mDownloadId = downloadId;
+            mTask = task;
+        }
+    }
+}
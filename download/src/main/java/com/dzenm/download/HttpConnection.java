@@ -0,0 +1,473 @@
+package com.dzenm.download;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * {@link PooledHttpTransport} 使用的一条HTTP/1.1连接, 同一时间只处理一个请求.
+ * 响应体读取完成后连接归还到 {@link ConnectionPool}, 下一个相同Host的请求直接复用, 不需要重新进行TCP和TLS握手
+ */
+class HttpConnection {
+
+    /**
+     * 状态行和响应头单行的最大长度
+     */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * 提前关闭响应时最多丢弃的剩余数据, 剩余数据较少时读取完成后复用连接, 否则直接关闭连接
+     */
+    private static final int MAX_DISCARD_BYTES = 64 * 1024;
+    private static final int DISCARD_TIMEOUT = 100;
+
+    private final String mKey;
+    private final Socket mSocket;
+    private final BufferedInputStream mInput;
+    private final OutputStream mOutput;
+
+    /**
+     * 连接进入连接池的时间(纳秒)
+     */
+    long mIdleAtNanos;
+
+    private HttpConnection(String key, Socket socket) throws IOException {
+        mKey = key;
+        mSocket = socket;
+        mInput = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+        mOutput = socket.getOutputStream();
+    }
+
+    /**
+     * 建立连接, https的连接完成TLS握手并校验证书的域名
+     *
+     * @param url            请求的URL
+     * @param key            连接池中的key {@link ConnectionPool#keyOf(URL)}
+     * @param connectTimeout 连接超时时间(毫秒)
+     * @param timing         记录DNS解析、TCP连接和TLS握手的耗时
+     * @return 已建立的连接
+     */
+    static HttpConnection open(URL url, String key, int connectTimeout, RequestTiming timing)
+            throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        long startTime = System.nanoTime();
+        InetAddress address = InetAddress.getByName(host);
+        long resolvedTime = System.nanoTime();
+        timing.mDnsTime += resolvedTime - startTime;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), connectTimeout);
+            socket.setTcpNoDelay(true);
+            long connectedTime = System.nanoTime();
+            timing.mConnectTime += connectedTime - resolvedTime;
+            timing.mConnectionCount++;
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                SSLSocket sslSocket = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory()
+                        .createSocket(socket, host, port, true);
+                socket = sslSocket;
+                sslSocket.setSoTimeout(connectTimeout);
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("证书与域名不匹配: " + host);
+                }
+                timing.mTlsTime += System.nanoTime() - connectedTime;
+            }
+            return new HttpConnection(key, socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * 发送请求并读取响应头
+     *
+     * @param pool        响应读取完成后归还连接的连接池
+     * @param url         请求的URL
+     * @param method      请求的方式
+     * @param headers     请求头部信息
+     * @param readTimeout 读取超时时间(毫秒)
+     * @param timing      记录从发送请求到读取到状态行的耗时, 与响应一起返回
+     * @return 响应
+     */
+    HttpTransport.Response execute(ConnectionPool pool, URL url, String method,
+                                   Map<String, String> headers, int readTimeout,
+                                   RequestTiming timing) throws IOException {
+        mSocket.setSoTimeout(readTimeout);
+        long startTime = System.nanoTime();
+        writeRequest(url, method, headers);
+
+        String statusLine;
+        int code;
+        Map<String, String> responseHeaders;
+        do {
+            // 跳过100 Continue之类的中间响应
+            statusLine = readLine();
+            if (startTime != 0) {
+                timing.mTimeToFirstByte += System.nanoTime() - startTime;
+                startTime = 0;
+            }
+            code = parseStatusCode(statusLine);
+            responseHeaders = readHeaders();
+        } while (code >= 100 && code < 200);
+
+        String connectionHeader = responseHeaders.get("Connection");
+        boolean isKeepAlive = statusLine.startsWith("HTTP/1.1")
+                ? !"close".equalsIgnoreCase(connectionHeader)
+                : "keep-alive".equalsIgnoreCase(connectionHeader);
+        long contentLength = parseLong(responseHeaders.get("Content-Length"));
+
+        BodyInputStream body;
+        if (HttpTransport.HEAD.equals(method) || code == 204 || code == 304) {
+            body = new FixedLengthInputStream(pool, 0, isKeepAlive);
+        } else if ("chunked".equalsIgnoreCase(responseHeaders.get("Transfer-Encoding"))) {
+            body = new ChunkedInputStream(pool, isKeepAlive);
+            contentLength = -1;
+        } else if (contentLength >= 0) {
+            body = new FixedLengthInputStream(pool, contentLength, isKeepAlive);
+        } else {
+            // 没有长度信息时读取到连接关闭为止, 连接不能复用
+            body = new FixedLengthInputStream(pool, Long.MAX_VALUE, false);
+        }
+        return new PooledResponse(url.toString(), code, responseHeaders, contentLength, body, timing);
+    }
+
+    /**
+     * 检查空闲的连接是否仍然可用, 服务器可能已经关闭了空闲的连接
+     */
+    boolean isHealthy() {
+        if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            int readTimeout = mSocket.getSoTimeout();
+            try {
+                mSocket.setSoTimeout(1);
+                mInput.mark(1);
+                // 空闲连接上不应该有数据, 读取到数据流结束说明服务器已关闭连接
+                if (mInput.read() == -1) return false;
+                mInput.reset();
+                return true;
+            } finally {
+                mSocket.setSoTimeout(readTimeout);
+            }
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        closeQuietly(mSocket);
+    }
+
+    private void writeRequest(URL url, String method, Map<String, String> headers) throws IOException {
+        String path = url.getFile();
+        StringBuilder builder = new StringBuilder();
+        builder.append(method).append(' ').append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        Map<String, String> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        requestHeaders.put("Host", url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                ? url.getHost() : url.getHost() + ":" + url.getPort());
+        requestHeaders.put("Connection", "Keep-Alive");
+        // 下载的数据直接写入文件, 不接受压缩
+        requestHeaders.put("Accept-Encoding", "identity");
+        String userAgent = System.getProperty("http.agent");
+        if (userAgent != null) requestHeaders.put("User-Agent", userAgent);
+        requestHeaders.putAll(headers);
+        for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        builder.append("\r\n");
+        mOutput.write(builder.toString().getBytes("UTF-8"));
+        mOutput.flush();
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int index = line.indexOf(':');
+            if (index <= 0) continue;
+            headers.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+        }
+        return headers;
+    }
+
+    /**
+     * 读取一行数据, 不包含结尾的CRLF
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = mInput.read()) != '\n') {
+            if (b == -1) throw new ProtocolException("连接已关闭");
+            if (line.size() >= MAX_LINE_LENGTH) throw new ProtocolException("响应头过长");
+            line.write(b);
+        }
+        String value = line.toString("ISO-8859-1");
+        return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    private static int parseStatusCode(String statusLine) throws ProtocolException {
+        // 状态行格式为 HTTP/1.1 206 Partial Content
+        if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+            throw new ProtocolException("无效的状态行: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("无效的状态行: " + statusLine);
+        }
+    }
+
+    /**
+     * @param value 响应头中的数字, 例如Content-Length
+     * @return 解析的值, 为null或者无法解析时返回-1
+     */
+    static long parseLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 响应体的数据流, 读取完成后关闭时归还连接, 没有读取完成时丢弃少量剩余数据后归还, 否则关闭连接
+     */
+    private abstract class BodyInputStream extends InputStream {
+
+        private final ConnectionPool mPool;
+        private final boolean isKeepAlive;
+        private boolean isClosed = false;
+        private volatile boolean isCancelled = false;
+
+        BodyInputStream(ConnectionPool pool, boolean keepAlive) {
+            mPool = pool;
+            isKeepAlive = keepAlive;
+        }
+
+        /**
+         * @return 响应体是否已经全部读取
+         */
+        abstract boolean isExhausted();
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * 关闭连接, 不需要等待正在读取的线程
+         */
+        void cancel() {
+            isCancelled = true;
+            HttpConnection.this.close();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (isClosed) return;
+            isClosed = true;
+            if (!isCancelled && isKeepAlive && (isExhausted() || discard())) {
+                mPool.put(HttpConnection.this);
+            } else {
+                HttpConnection.this.close();
+            }
+        }
+
+        private boolean discard() {
+            try {
+                mSocket.setSoTimeout(DISCARD_TIMEOUT);
+                byte[] buffer = new byte[8 * 1024];
+                int discarded = 0;
+                while (discarded < MAX_DISCARD_BYTES) {
+                    int count = read(buffer, 0, buffer.length);
+                    if (count == -1) return true;
+                    discarded += count;
+                }
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 按Content-Length读取的响应体
+     */
+    private class FixedLengthInputStream extends BodyInputStream {
+
+        private long mRemaining;
+
+        FixedLengthInputStream(ConnectionPool pool, long length, boolean keepAlive) {
+            super(pool, keepAlive);
+            mRemaining = length;
+        }
+
+        @Override
+        boolean isExhausted() {
+            return mRemaining == 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) return -1;
+            int count = mInput.read(b, off, (int) Math.min(len, mRemaining));
+            if (count == -1) {
+                if (mRemaining == Long.MAX_VALUE) {
+                    mRemaining = 0;
+                    return -1;
+                }
+                throw new ProtocolException("响应体不完整, 剩余: " + mRemaining);
+            }
+            if (mRemaining != Long.MAX_VALUE) mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mInput.available(), mRemaining);
+        }
+    }
+
+    /**
+     * Transfer-Encoding为chunked的响应体
+     */
+    private class ChunkedInputStream extends BodyInputStream {
+
+        /**
+         * 当前块剩余的字节数, -1表示还没有读取第一个块
+         */
+        private long mChunkRemaining = -1;
+        private boolean isEof = false;
+
+        ChunkedInputStream(ConnectionPool pool, boolean keepAlive) {
+            super(pool, keepAlive);
+        }
+
+        @Override
+        boolean isExhausted() {
+            return isEof;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (isEof) return -1;
+            if (mChunkRemaining <= 0) {
+                readChunkSize();
+                if (isEof) return -1;
+            }
+            int count = mInput.read(b, off, (int) Math.min(len, mChunkRemaining));
+            if (count == -1) throw new ProtocolException("响应体不完整");
+            mChunkRemaining -= count;
+            return count;
+        }
+
+        private void readChunkSize() throws IOException {
+            // 上一个块的数据后面有一个CRLF
+            if (mChunkRemaining == 0) readLine();
+            String line = readLine();
+            int index = line.indexOf(';');
+            if (index >= 0) line = line.substring(0, index);
+            try {
+                mChunkRemaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("无效的块大小: " + line);
+            }
+            if (mChunkRemaining == 0) {
+                // 最后一个块后面是可选的尾部响应头
+                readHeaders();
+                isEof = true;
+            }
+        }
+    }
+
+    private static class PooledResponse implements HttpTransport.Response, RequestTiming.Source {
+
+        private final String mUrl;
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+        private final long mContentLength;
+        private final BodyInputStream mBody;
+        private final RequestTiming mTiming;
+
+        PooledResponse(String url, int code, Map<String, String> headers, long contentLength,
+                       BodyInputStream body, RequestTiming timing) {
+            mUrl = url;
+            mCode = code;
+            mHeaders = headers;
+            mContentLength = contentLength;
+            mBody = body;
+            mTiming = timing;
+        }
+
+        @Override
+        public RequestTiming getTiming() {
+            return mTiming;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getUrl() {
+            return mUrl;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            mBody.close();
+        }
+
+        @Override
+        public void cancel() {
+            mBody.cancel();
+        }
+    }
+}
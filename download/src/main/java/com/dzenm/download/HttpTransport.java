@@ -0,0 +1,79 @@
+package com.dzenm.download;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * 下载使用的HTTP传输层, DownloadTask只通过该接口发送请求和读取响应, 写入文件的流程与具体的HTTP实现无关.
+ * 默认使用 {@link UrlConnectionTransport}, 遵循系统的代理设置. 可以通过 {@link DownloadConfig#setHttpTransport(HttpTransport)}
+ * 替换为其它的HTTP实现: 需要连接复用和DNS、连接、TLS各阶段耗时 {@link RequestTiming} 时设置为
+ * {@code new PooledHttpTransport()}, 它不经过 {@link java.net.ProxySelector}, 只适合不使用代理的网络
+ */
+public interface HttpTransport {
+
+    String GET = "GET";
+    String HEAD = "HEAD";
+
+    /**
+     * 发送请求并读取响应头, 自动跟随重定向, 可能在多个下载线程中同时调用
+     *
+     * @param url            请求的URL
+     * @param method         请求的方式 {@link #GET} 或 {@link #HEAD}
+     * @param headers        请求头部信息
+     * @param connectTimeout 连接超时时间(毫秒)
+     * @param readTimeout    读取超时时间(毫秒)
+     * @return 响应, 使用完成后必须调用 {@link Response#close()}
+     * @throws IOException 连接或者读取响应头失败
+     */
+    Response execute(String url, String method, Map<String, String> headers,
+                     int connectTimeout, int readTimeout) throws IOException;
+
+    /**
+     * HTTP响应, 关闭时读取完成的连接可以被下一个请求复用
+     */
+    interface Response extends Closeable {
+
+        /**
+         * @return 响应码
+         */
+        int getCode();
+
+        /**
+         * @return 跟随重定向后最终请求的URL
+         */
+        String getUrl();
+
+        /**
+         * @param name 响应头名称, 不区分大小写
+         * @return 响应头的值, 不存在时返回null
+         */
+        @Nullable
+        String getHeader(String name);
+
+        /**
+         * @return 响应体的长度, 未知时返回-1
+         */
+        long getContentLength();
+
+        /**
+         * @return 响应体的数据流, 关闭数据流等同于关闭响应
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * 关闭响应, 多次调用没有影响
+         */
+        @Override
+        void close();
+
+        /**
+         * 立即关闭底层连接, 可以在其它线程调用, 阻塞在读取数据中的线程立即抛出异常返回.
+         * 取消后的连接不会被复用, 之后仍然需要调用 {@link #close()}
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,82 @@
+package com.dzenm.download;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * 复用连接的HTTP/1.1传输层, 同一个Host的多个下载任务和分段共享 {@link ConnectionPool} 中的连接,
+ * 批量下载同一个CDN的小文件时不需要每次都重新进行TCP和TLS握手. 只支持HTTP/1.1直接连接,
+ * 不使用系统代理({@link java.net.ProxySelector}), 需要通过 {@link DownloadConfig#setHttpTransport(HttpTransport)} 启用
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    private static final int MAX_REDIRECTS = 20;
+
+    private final ConnectionPool mConnectionPool;
+
+    public PooledHttpTransport() {
+        this(new ConnectionPool());
+    }
+
+    public PooledHttpTransport(ConnectionPool connectionPool) {
+        mConnectionPool = connectionPool;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    @Override
+    public Response execute(String url, String method, Map<String, String> headers,
+                            int connectTimeout, int readTimeout) throws IOException {
+        URL currentUrl = new URL(url);
+        RequestTiming timing = new RequestTiming();
+        for (int redirectCount = 0; ; redirectCount++) {
+            String protocol = currentUrl.getProtocol();
+            if (!"http".equalsIgnoreCase(protocol) && !"https".equalsIgnoreCase(protocol)) {
+                throw new ProtocolException("不支持的协议: " + currentUrl);
+            }
+            Response response = executeOnce(currentUrl, method, headers, connectTimeout, readTimeout, timing);
+            String location = response.getHeader("Location");
+            if (!isRedirect(response.getCode()) || location == null) return response;
+            response.close();
+            if (redirectCount >= MAX_REDIRECTS) {
+                throw new ProtocolException("重定向次数过多: " + url);
+            }
+            currentUrl = new URL(currentUrl, location);
+        }
+    }
+
+    /**
+     * 发送一次请求, 优先使用连接池中的空闲连接. 复用的连接可能在检查后被服务器关闭,
+     * 此时使用新建的连接重新发送请求
+     */
+    private Response executeOnce(URL url, String method, Map<String, String> headers,
+                                 int connectTimeout, int readTimeout, RequestTiming timing)
+            throws IOException {
+        String key = ConnectionPool.keyOf(url);
+        HttpConnection connection = mConnectionPool.get(key);
+        if (connection != null) {
+            timing.mReusedCount++;
+            try {
+                return connection.execute(mConnectionPool, url, method, headers, readTimeout, timing);
+            } catch (IOException e) {
+                connection.close();
+                timing.mRetryCount++;
+            }
+        }
+        connection = HttpConnection.open(url, key, connectTimeout, timing);
+        try {
+            return connection.execute(mConnectionPool, url, method, headers, readTimeout, timing);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+}
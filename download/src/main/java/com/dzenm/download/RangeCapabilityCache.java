@@ -0,0 +1,213 @@
+package com.dzenm.download;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务器是否支持Range请求的缓存, 所有下载任务共享. 通过只请求第一个字节的探测请求或者下载请求的响应得到
+ * 文件是否支持Range请求、文件总大小和校验信息(ETag/Last-Modified), 在
+ * {@link DownloadConfig#getCapabilityTtl()} 内再次下载同一个URL时直接选择分段、单线程或者重新下载,
+ * 不需要每次先发送一个完整的请求. 同一个Host的URL不支持Range请求时, 该Host的其它URL也不再探测
+ */
+public final class RangeCapabilityCache {
+
+    private static final RangeCapabilityCache INSTANCE = new RangeCapabilityCache();
+
+    private final Map<String, Capability> mCapabilities = new ConcurrentHashMap<>();
+
+    /**
+     * 不支持Range请求的Host和过期时间
+     */
+    private final Map<String, Long> mUnsupportedHosts = new ConcurrentHashMap<>();
+
+    private RangeCapabilityCache() {
+    }
+
+    public static RangeCapabilityCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param url 下载地址
+     * @return 缓存的探测结果, 不存在或者已过期时返回null
+     */
+    @Nullable
+    Capability get(String url) {
+        Capability capability = mCapabilities.get(url);
+        if (capability == null) return null;
+        if (capability.mExpireTime <= SystemClock.elapsedRealtime()) {
+            mCapabilities.remove(url);
+            return null;
+        }
+        return capability;
+    }
+
+    /**
+     * @param url 下载地址
+     * @return 下载地址所在的Host是否已知不支持Range请求
+     */
+    boolean isUnsupportedHost(String url) {
+        String host = hostOf(url);
+        if (host == null) return false;
+        Long expireTime = mUnsupportedHosts.get(host);
+        if (expireTime == null) return false;
+        if (expireTime <= SystemClock.elapsedRealtime()) {
+            mUnsupportedHosts.remove(host);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 根据Range请求的响应记录服务器是否支持Range请求, 206表示支持, 200表示服务器忽略了Range请求头
+     *
+     * @param url      请求的下载地址
+     * @param response 带有Range请求头(没有If-Range)的请求的响应
+     * @return 记录的结果, 其它响应码无法判断时返回null
+     */
+    @Nullable
+    Capability record(String url, HttpTransport.Response response) {
+        int code = response.getCode();
+        boolean isRangeSupported;
+        long length;
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            isRangeSupported = true;
+            length = parseContentRangeTotal(response.getHeader("Content-Range"));
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            isRangeSupported = false;
+            length = response.getContentLength();
+        } else {
+            return null;
+        }
+        if ("none".equalsIgnoreCase(response.getHeader("Accept-Ranges"))) isRangeSupported = false;
+
+        long expireTime = SystemClock.elapsedRealtime() + DownloadConfig.getCapabilityTtl();
+        Capability capability = new Capability(isRangeSupported, length, response.getHeader("ETag"),
+                response.getHeader("Last-Modified"), expireTime);
+        mCapabilities.put(url, capability);
+        String host = hostOf(url);
+        if (host != null) {
+            if (isRangeSupported) {
+                mUnsupportedHosts.remove(host);
+            } else {
+                mUnsupportedHosts.put(host, expireTime);
+            }
+        }
+        return capability;
+    }
+
+    /**
+     * 移除下载地址的探测结果, 服务器文件已改变时调用
+     *
+     * @param url 下载地址
+     */
+    public void invalidate(String url) {
+        mCapabilities.remove(url);
+    }
+
+    /**
+     * 移除所有探测结果
+     */
+    public void clear() {
+        mCapabilities.clear();
+        mUnsupportedHosts.clear();
+    }
+
+    /**
+     * @param contentRange 响应头Content-Range, 格式为 bytes start-end/total
+     * @return 文件总大小, 无法解析时返回-1
+     */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) return -1;
+        int index = contentRange.lastIndexOf('/');
+        if (index < 0) return -1;
+        String total = contentRange.substring(index + 1).trim();
+        try {
+            return "*".equals(total) ? -1 : Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param contentRange 响应头Content-Range, 格式为 bytes start-end/total
+     * @return 返回数据的起始位置, 无法解析时返回-1
+     */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null) return -1;
+        int start = contentRange.indexOf(' ') + 1, end = contentRange.indexOf('-');
+        if (end <= start) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(start, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 一个下载地址的探测结果
+     */
+    static final class Capability {
+
+        private final boolean isRangeSupported;
+
+        /**
+         * 文件总大小, 未知时为-1
+         */
+        private final long mLength;
+        private final String mETag;
+        private final String mLastModified;
+        private final long mExpireTime;
+
+        Capability(boolean rangeSupported, long length, String eTag, String lastModified,
+                   long expireTime) {
+            isRangeSupported = rangeSupported;
+            mLength = length;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mExpireTime = expireTime;
+        }
+
+        boolean isRangeSupported() {
+            return isRangeSupported;
+        }
+
+        long getLength() {
+            return mLength;
+        }
+
+        String getETag() {
+            return mETag;
+        }
+
+        String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @param journal 断点记录
+         * @return 探测到的文件与断点记录中的文件是否一致, 无法判断时认为一致, 由If-Range再次校验
+         */
+        boolean matches(DownloadJournal journal) {
+            if (mLength > 0 && journal.getLength() > 0 && mLength != journal.getLength()) return false;
+            if (mETag != null && journal.getETag() != null) return mETag.equals(journal.getETag());
+            return mLastModified == null || journal.getLastModified() == null
+                    || mLastModified.equals(journal.getLastModified());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.dzenm.download;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限速器, 每秒产生 {@link #getRate()} 个字节的令牌, 最多积累1秒的令牌.
+ * 下载线程每次读取前获取令牌, 令牌不足时等待, 限速可以在下载过程中随时修改, 等待中的线程立即按新的速度重新计算.
+ * 不限速时只读取一次volatile变量, 不需要加锁
+ */
+final class RateLimiter {
+
+    /**
+     * 每秒允许的字节数, 小于等于0表示不限速
+     */
+    private volatile long mBytesPerSecond;
+
+    private double mTokens = 0;
+    private long mLastRefillNanos = System.nanoTime();
+
+    /**
+     * {@link #wakeUp()} 的次数, 等待中的线程被唤醒后发现次数改变时不再继续等待
+     */
+    private int mWakeUpCount = 0;
+
+    RateLimiter(long bytesPerSecond) {
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * 修改限速, 正在等待令牌的线程按新的速度重新计算等待时间
+     *
+     * @param bytesPerSecond 每秒允许的字节数, 小于等于0表示不限速
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        long now = System.nanoTime();
+        if (mBytesPerSecond > 0) {
+            refill(now, mBytesPerSecond);
+        } else {
+            mTokens = 0;
+        }
+        mLastRefillNanos = now;
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mTokens = Math.min(mTokens, mBytesPerSecond);
+        notifyAll();
+    }
+
+    /**
+     * 唤醒所有等待令牌的线程, 等待中的 {@link #acquire(long)} 返回0, 停止下载时调用
+     */
+    synchronized void wakeUp() {
+        mWakeUpCount++;
+        notifyAll();
+    }
+
+    /**
+     * @return 每秒允许的字节数, 0表示不限速
+     */
+    long getRate() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * 获取令牌, 令牌不足时等待. 每次最多等待约0.1秒的令牌, 低速时读取的块更小, 暂停和修改限速可以及时生效
+     *
+     * @param max 最多需要的字节数
+     * @return 允许读取的字节数, 取值范围[1, max], 不限速时返回max, 等待时被 {@link #wakeUp()} 唤醒返回0
+     * @throws InterruptedIOException 等待时线程被中断
+     */
+    long acquire(long max) throws InterruptedIOException {
+        if (mBytesPerSecond <= 0 || max <= 0) return max;
+        synchronized (this) {
+            int wakeUpCount = mWakeUpCount;
+            while (true) {
+                long rate = mBytesPerSecond;
+                if (rate <= 0) return max;
+                refill(System.nanoTime(), rate);
+                long need = Math.max(1, Math.min(max, rate / 10));
+                if (mTokens >= need) {
+                    long granted = (long) Math.min(max, mTokens);
+                    mTokens -= granted;
+                    return granted;
+                }
+                long waitNanos = (long) ((need - mTokens) * TimeUnit.SECONDS.toNanos(1) / rate) + 1;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待限速令牌时被中断");
+                }
+                if (mWakeUpCount != wakeUpCount) return 0;
+            }
+        }
+    }
+
+    /**
+     * 归还没有使用的令牌, 读取的数据少于获取的令牌时调用
+     *
+     * @param unused 没有使用的字节数
+     */
+    void release(long unused) {
+        if (mBytesPerSecond <= 0 || unused <= 0) return;
+        synchronized (this) {
+            mTokens = Math.min(mBytesPerSecond, mTokens + unused);
+        }
+    }
+
+    private void refill(long now, long rate) {
+        double elapsedSeconds = (now - mLastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        mTokens = Math.min(rate, mTokens + elapsedSeconds * rate);
+        mLastRefillNanos = now;
+    }
+}
@@ -0,0 +1,84 @@
+package com.dzenm.download;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 下载地址跟随重定向后的最终地址的缓存, 所有下载任务共享. 下载门户通常经过一到多次302跳转到CDN节点,
+ * 在 {@link DownloadConfig#getRedirectTtl()} 内断点续传和分段请求直接请求最终地址, 不再重复跳转.
+ * 最终地址请求失败(4xx/5xx或者连接失败)时移除缓存, 重新请求原始地址
+ */
+public final class RedirectCache {
+
+    private static final RedirectCache INSTANCE = new RedirectCache();
+
+    private final Map<String, Target> mTargets = new ConcurrentHashMap<>();
+
+    private RedirectCache() {
+    }
+
+    public static RedirectCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param url 原始的下载地址
+     * @return 缓存的最终地址, 不存在或者已过期时返回null
+     */
+    @Nullable
+    String get(String url) {
+        Target target = mTargets.get(url);
+        if (target == null) return null;
+        if (target.mExpireTime <= SystemClock.elapsedRealtime()) {
+            mTargets.remove(url);
+            return null;
+        }
+        return target.mUrl;
+    }
+
+    /**
+     * 保存最终地址, 最终地址与原始地址相同时移除缓存
+     *
+     * @param url      原始的下载地址
+     * @param finalUrl 跟随重定向后的最终地址
+     */
+    void put(String url, String finalUrl) {
+        long ttl = DownloadConfig.getRedirectTtl();
+        if (finalUrl == null || finalUrl.equals(url) || ttl <= 0) {
+            mTargets.remove(url);
+        } else {
+            mTargets.put(url, new Target(finalUrl, SystemClock.elapsedRealtime() + ttl));
+        }
+    }
+
+    /**
+     * 移除原始地址的最终地址, 最终地址请求失败时调用
+     *
+     * @param url 原始的下载地址
+     */
+    public void invalidate(String url) {
+        mTargets.remove(url);
+    }
+
+    /**
+     * 移除所有缓存的最终地址
+     */
+    public void clear() {
+        mTargets.clear();
+    }
+
+    private static final class Target {
+
+        private final String mUrl;
+        private final long mExpireTime;
+
+        Target(String url, long expireTime) {
+            mUrl = url;
+            mExpireTime = expireTime;
+        }
+    }
+}
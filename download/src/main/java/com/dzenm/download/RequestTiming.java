@@ -0,0 +1,46 @@
+package com.dzenm.download;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 一次请求各阶段的耗时, 包括跟随重定向的所有请求. 由 {@link PooledHttpTransport} 在请求线程中记录,
+ * 响应返回后只读, 其它传输层没有各阶段的耗时
+ */
+final class RequestTiming {
+
+    /**
+     * 可以提供请求耗时的响应
+     */
+    interface Source {
+
+        RequestTiming getTiming();
+    }
+
+    /**
+     * 新建连接的DNS解析、TCP连接和TLS握手的耗时(纳秒)
+     */
+    long mDnsTime = 0;
+    long mConnectTime = 0;
+    long mTlsTime = 0;
+
+    /**
+     * 从发送请求到读取到状态行的耗时(纳秒)
+     */
+    long mTimeToFirstByte = 0;
+
+    /**
+     * 新建的连接数量、复用连接池中连接的次数和复用的连接已失效后重新发送请求的次数
+     */
+    int mConnectionCount = 0;
+    int mReusedCount = 0;
+    int mRetryCount = 0;
+
+    /**
+     * @param response 响应
+     * @return 响应的请求耗时, 传输层不支持时返回null
+     */
+    @Nullable
+    static RequestTiming of(HttpTransport.Response response) {
+        return response instanceof Source ? ((Source) response).getTiming() : null;
+    }
+}
@@ -0,0 +1,72 @@
+package com.dzenm.download;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 根据连续的下载进度估算下载速度, 按两次进度之间的耗时加权做指数平滑(EWMA), 进度回调间隔不均匀时
+ * 间隔越长的采样对速度的影响越大. 每个下载任务一个, 只在发送进度的线程中调用, 不是线程安全的
+ */
+public final class SpeedEstimator {
+
+    /**
+     * 速度平滑的时间常数(纳秒), 越大速度越稳定, 对网络变化的反应越慢
+     */
+    private static final double SMOOTHING_TIME = 3000 * 1000000.0;
+
+    /**
+     * 两次进度的间隔超过该时间(纳秒)时认为下载中断过, 重新开始估算, 暂停期间不计入速度
+     */
+    private static final long MAX_SAMPLE_INTERVAL = 10 * 1000000000L;
+
+    private long mLastTime = 0;
+    private long mLastSize = -1;
+
+    /**
+     * 平滑后的速度(字节/纳秒), 还没有采样时为0
+     */
+    private double mSpeed = 0;
+
+    /**
+     * 记录一次下载进度并返回包含速度的快照
+     *
+     * @param totalSize      文件总大小, 未知时小于等于0
+     * @param downloadedSize 已下载的文件大小
+     * @return 下载进度
+     */
+    @NonNull
+    public DownloadProgress update(long totalSize, long downloadedSize) {
+        return update(totalSize, downloadedSize, System.nanoTime());
+    }
+
+    DownloadProgress update(long totalSize, long downloadedSize, long now) {
+        long elapsed = now - mLastTime;
+        if (mLastSize < 0 || downloadedSize < mLastSize || elapsed > MAX_SAMPLE_INTERVAL) {
+            // 第一次进度、重新下载或者中断后继续下载, 只记录起点
+            mSpeed = 0;
+            mLastTime = now;
+            mLastSize = downloadedSize;
+        } else if (elapsed > 0) {
+            double speed = (double) (downloadedSize - mLastSize) / elapsed;
+            double weight = 1 - Math.exp(-elapsed / SMOOTHING_TIME);
+            mSpeed = mSpeed == 0 ? speed : weight * speed + (1 - weight) * mSpeed;
+            mLastTime = now;
+            mLastSize = downloadedSize;
+        }
+        return new DownloadProgress(totalSize, downloadedSize, getBytesPerSecond());
+    }
+
+    /**
+     * 清除之前的采样, 下一次进度重新开始估算
+     */
+    public void reset() {
+        mLastSize = -1;
+        mSpeed = 0;
+    }
+
+    /**
+     * @return 平滑后的下载速度(字节/秒)
+     */
+    public long getBytesPerSecond() {
+        return (long) (mSpeed * 1000000000L);
+    }
+}
@@ -0,0 +1,99 @@
+package com.dzenm.download;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * 使用系统HttpURLConnection的传输层. 关闭响应时只关闭数据流而不调用disconnect(),
+ * 读取完成的连接由系统的连接池复用
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public Response execute(String url, String method, Map<String, String> headers,
+                            int connectTimeout, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setInstanceFollowRedirects(true);
+        connection.setDoInput(true);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            connection.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+        try {
+            connection.connect();
+            return new UrlConnectionResponse(connection, connection.getResponseCode());
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static class UrlConnectionResponse implements Response {
+
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private InputStream mBody;
+        private boolean isClosed = false;
+
+        UrlConnectionResponse(HttpURLConnection connection, int code) {
+            mConnection = connection;
+            mCode = code;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getUrl() {
+            return mConnection.getURL().toString();
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return HttpConnection.parseLong(mConnection.getHeaderField("Content-Length"));
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream() : mConnection.getInputStream();
+            }
+            return mBody;
+        }
+
+        @Override
+        public void cancel() {
+            mConnection.disconnect();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (isClosed) return;
+            isClosed = true;
+            try {
+                // 只关闭数据流, 连接交给系统的连接池复用
+                InputStream body = mBody != null ? mBody : mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream() : mConnection.getInputStream();
+                if (body != null) body.close();
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.dzenm.download;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 读取和写入分离的数据管道. 读取线程把网络数据填入缓冲区后交给写入线程, 写入线程按顺序写入磁盘,
+ * 磁盘写入变慢时读取线程可以继续读取, 网络变慢时已读取的数据仍然持续写入.
+ * 最多同时存在 {@link DownloadConfig#getPipelineDepth()} 个缓冲区, 全部等待写入时读取线程阻塞(背压),
+ * 内存不会无限增长. 分别记录读取线程等待空闲缓冲区和写入线程等待数据的时间
+ */
+final class WritePipeline {
+
+    /**
+     * 写入线程池, 所有下载任务共享, 每个分段使用一个写入线程
+     */
+    private static final ExecutorService WRITER_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "DownloadWriter-" + mCount.incrementAndGet());
+        }
+    });
+
+    interface Sink {
+
+        /**
+         * 在写入线程中按读取的顺序调用
+         *
+         * @param buffer   读模式的缓冲区, 写入完成后回收
+         * @param position 数据在文件中的位置
+         * @throws IOException 写入失败, 之后的数据不再写入
+         */
+        void write(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    /**
+     * 表示没有更多数据的标记
+     */
+    private static final Chunk END = new Chunk(null, -1);
+
+    private final Sink mSink;
+    private final int mDepth;
+
+    /**
+     * 空闲的缓冲区和等待写入的数据, 缓冲区总数不超过mDepth, 两个队列都不会阻塞放入
+     */
+    private final BlockingQueue<ByteBuffer> mFreeBuffers;
+    private final BlockingQueue<Chunk> mChunks;
+    private int mAllocatedCount = 0;
+
+    private final CountDownLatch mWriterFinished = new CountDownLatch(1);
+    private volatile IOException mWriteError;
+    private volatile boolean isCancelled = false;
+    private boolean isClosed = false;
+
+    /**
+     * 读取线程等待空闲缓冲区和写入线程等待数据的时间(纳秒)
+     */
+    private long mReaderStallTime = 0;
+    private volatile long mWriterStallTime = 0;
+
+    WritePipeline(int depth, Sink sink) {
+        mDepth = Math.max(2, depth);
+        mSink = sink;
+        mFreeBuffers = new ArrayBlockingQueue<>(mDepth);
+        mChunks = new ArrayBlockingQueue<>(mDepth + 1);
+        WRITER_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * 获取一个空闲的缓冲区, 所有缓冲区都在等待写入时阻塞, 在读取线程调用
+     *
+     * @param size 缓冲区大小, 空闲的缓冲区大小不同时换成新的大小
+     * @return 已清空的缓冲区
+     * @throws IOException 写入线程已经写入失败
+     */
+    ByteBuffer acquire(int size) throws IOException {
+        checkWriteError();
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null && mAllocatedCount < mDepth) {
+            mAllocatedCount++;
+            buffer = ByteBufferPool.getInstance().acquire(size);
+        }
+        if (buffer == null) {
+            long startTime = System.nanoTime();
+            try {
+                buffer = mFreeBuffers.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("等待写入磁盘时被中断");
+            } finally {
+                mReaderStallTime += System.nanoTime() - startTime;
+            }
+        }
+        checkWriteError();
+        if (buffer.capacity() != ByteBufferPool.sizeOf(size)) {
+            ByteBufferPool.getInstance().release(buffer);
+            buffer = ByteBufferPool.getInstance().acquire(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 把填满数据的缓冲区交给写入线程, 在读取线程调用
+     *
+     * @param buffer   通过 {@link #acquire(int)} 获取的读模式缓冲区
+     * @param position 数据在文件中的位置
+     */
+    void submit(ByteBuffer buffer, long position) {
+        mChunks.offer(new Chunk(buffer, position));
+    }
+
+    /**
+     * 归还没有使用的缓冲区, 在读取线程调用
+     */
+    void recycle(ByteBuffer buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+
+    /**
+     * 等待已提交的数据全部写入, 在读取线程调用, 只能调用一次
+     *
+     * @throws IOException 写入失败
+     */
+    void finish() throws IOException {
+        close(false);
+        checkWriteError();
+    }
+
+    /**
+     * 丢弃还没有写入的数据并等待写入线程结束, 在读取线程调用, 已经结束时没有影响
+     */
+    void cancel() {
+        try {
+            close(true);
+        } catch (InterruptedIOException ignored) {
+            // 写入线程仍然会在处理完当前数据后结束
+        }
+    }
+
+    /**
+     * @return 读取线程因为所有缓冲区都在等待写入而阻塞的时间(毫秒)
+     */
+    long getReaderStallTime() {
+        return mReaderStallTime / 1000000;
+    }
+
+    /**
+     * @return 写入线程因为没有读取到的数据而等待的时间(毫秒)
+     */
+    long getWriterStallTime() {
+        return mWriterStallTime / 1000000;
+    }
+
+    private void close(boolean cancel) throws InterruptedIOException {
+        if (isClosed) return;
+        isClosed = true;
+        if (cancel) isCancelled = true;
+        mChunks.offer(END);
+        try {
+            // 写入线程结束后才能关闭文件和归还缓冲区
+            mWriterFinished.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("等待写入磁盘时被中断");
+        }
+        ByteBuffer buffer;
+        while ((buffer = mFreeBuffers.poll()) != null) {
+            ByteBufferPool.getInstance().release(buffer);
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        IOException error = mWriteError;
+        if (error != null) throw error;
+    }
+
+    /**
+     * 写入线程按顺序写入数据, 写入失败或者取消后只回收缓冲区, 直到收到结束标记
+     */
+    private void drain() {
+        try {
+            while (true) {
+                Chunk chunk = mChunks.poll();
+                if (chunk == null) {
+                    long startTime = System.nanoTime();
+                    chunk = mChunks.take();
+                    mWriterStallTime += System.nanoTime() - startTime;
+                }
+                if (chunk == END) break;
+                if (mWriteError == null && !isCancelled) {
+                    try {
+                        mSink.write(chunk.mBuffer, chunk.mPosition);
+                    } catch (IOException e) {
+                        mWriteError = e;
+                    } catch (RuntimeException e) {
+                        mWriteError = new IOException("写入磁盘失败", e);
+                    }
+                }
+                mFreeBuffers.offer(chunk.mBuffer);
+            }
+        } catch (InterruptedException e) {
+            mWriteError = new InterruptedIOException("写入线程被中断");
+        } finally {
+            mWriterFinished.countDown();
+        }
+    }
+
+    private static final class Chunk {
+
+        private final ByteBuffer mBuffer;
+        private final long mPosition;
+
+        Chunk(ByteBuffer buffer, long position) {
+            mBuffer = buffer;
+            mPosition = position;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.dzenm.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 超过2GB的文件下载测试, 本地服务器按固定规律生成3GB的响应体, 不在内存中保存完整数据,
+ * 客户端边读取边校验每个字节, 长度、偏移量被截断为32位时校验失败.
+ * 完整读取3GB的测试较慢, 只在设置系统属性 {@link #LARGE_FILE_TEST} 为true时执行
+ */
+public class LargeFileDownloadTest {
+
+    /**
+     * 执行完整读取3GB响应体的测试, 例如 ./gradlew :download:test -Ddownload.largeFileTest=true
+     */
+    private static final String LARGE_FILE_TEST = "download.largeFileTest";
+
+    private static final long TOTAL = 3L << 30;
+
+    /**
+     * 数据的周期, 使用质数避免与读取的缓冲区大小对齐, 错位的数据不会恰好通过校验
+     */
+    private static final int PERIOD = 65521;
+
+    private static final byte[] PATTERN = new byte[PERIOD * 2];
+
+    static {
+        byte[] block = new byte[PERIOD];
+        new Random(PERIOD).nextBytes(block);
+        System.arraycopy(block, 0, PATTERN, 0, PERIOD);
+        System.arraycopy(block, 0, PATTERN, PERIOD, PERIOD);
+    }
+
+    private ServerSocket mServerSocket;
+    private volatile Socket mClientSocket;
+    private Thread mServerThread;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mUrl = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/large.bin";
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try (Socket socket = mServerSocket.accept()) {
+                        mClientSocket = socket;
+                        serve(socket);
+                    } catch (IOException ignored) {
+                        // 客户端提前关闭连接或者服务器已关闭
+                    }
+                }
+            }
+        }, "LargeFileServer");
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        // 连接池中的空闲连接保持打开, 关闭服务器一端结束等待下一个请求的服务线程
+        Socket socket = mClientSocket;
+        if (socket != null) socket.close();
+        mServerThread.join(5000);
+    }
+
+    @Test
+    public void streamBodyLargerThan2GB() throws IOException {
+        assumeTrue(Boolean.getBoolean(LARGE_FILE_TEST));
+        HttpTransport transport = new PooledHttpTransport(new ConnectionPool());
+        try (HttpTransport.Response response = transport.execute(mUrl, HttpTransport.GET,
+                new HashMap<String, String>(), 5000, 30000)) {
+            assertEquals(200, response.getCode());
+            assertEquals(TOTAL, response.getContentLength());
+            assertEquals(TOTAL, readAndVerify(response.getBody(), 0, Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void resumeFromOffsetBeyond2GB() throws IOException {
+        long start = (1L << 31) + 12345;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=" + start + "-");
+        HttpTransport transport = new PooledHttpTransport(new ConnectionPool());
+        try (HttpTransport.Response response = transport.execute(mUrl, HttpTransport.GET,
+                headers, 5000, 30000)) {
+            assertEquals(206, response.getCode());
+            String contentRange = response.getHeader("Content-Range");
+            assertEquals(start, RangeCapabilityCache.parseContentRangeStart(contentRange));
+            assertEquals(TOTAL, RangeCapabilityCache.parseContentRangeTotal(contentRange));
+            assertEquals(TOTAL - start, response.getContentLength());
+            // 只校验开头的数据, 剩余的数据随连接关闭丢弃
+            assertEquals(1 << 20, readAndVerify(response.getBody(), start, 1 << 20));
+            response.cancel();
+        }
+
+        DownloadJournal journal = new DownloadJournal(null, null, mUrl);
+        journal.init(TOTAL, null, null);
+        journal.markCompleted(0, start);
+        assertEquals(start, journal.getCompletedSize());
+        assertEquals(start, journal.getContiguousLength());
+        List<long[]> missing = journal.getMissingRanges();
+        assertEquals(1, missing.size());
+        assertArrayEquals(new long[]{start, TOTAL}, missing.get(0));
+        assertFalse(journal.isCompleted());
+        journal.markCompleted(start, TOTAL);
+        assertTrue(journal.isCompleted());
+    }
+
+    @Test
+    public void parseLengthsBeyond2GB() {
+        long start = (1L << 31) + 12345;
+        String contentRange = "bytes " + start + "-" + (TOTAL - 1) + "/" + TOTAL;
+        assertEquals(TOTAL, HttpConnection.parseLong(String.valueOf(TOTAL)));
+        assertEquals(TOTAL - start, HttpConnection.parseLong(" " + (TOTAL - start) + " "));
+        assertEquals(start, RangeCapabilityCache.parseContentRangeStart(contentRange));
+        assertEquals(TOTAL, RangeCapabilityCache.parseContentRangeTotal(contentRange));
+        assertEquals(-1, RangeCapabilityCache.parseContentRangeTotal("bytes " + start + "-" + (TOTAL - 1) + "/*"));
+    }
+
+    @Test
+    public void progressBeyond2GB() {
+        long downloaded = (1L << 31) + 12345;
+        DownloadProgress progress = new DownloadProgress(TOTAL, downloaded, 1 << 20);
+        assertEquals(downloaded * 100 / TOTAL, progress.getPercent());
+        assertEquals((TOTAL - downloaded) * 1000 / (1 << 20), progress.getRemainingTime());
+        assertEquals(100, new DownloadProgress(TOTAL, TOTAL, 0).getPercent());
+        assertEquals(0, new DownloadProgress(TOTAL, TOTAL, 0).getRemainingTime());
+        assertEquals(-1, new DownloadProgress(-1, downloaded, 1 << 20).getPercent());
+
+        // 已下载的大小超过2GB时速度按差值计算
+        SpeedEstimator estimator = new SpeedEstimator();
+        long now = 1000000000L;
+        estimator.update(TOTAL, downloaded, now);
+        progress = estimator.update(TOTAL, downloaded + (10 << 20), now + 1000000000L);
+        assertEquals(10 << 20, progress.getBytesPerSecond());
+        assertEquals(downloaded + (10 << 20), progress.getDownloadedSize());
+    }
+
+    @Test
+    public void writeAtOffsetBeyond2GB() throws IOException {
+        long position = (1L << 31) + 12345;
+        File file = File.createTempFile("large", ".part");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // 只写入末尾的数据, 文件系统使用稀疏文件, 不会真正占用3GB的磁盘空间
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(PERIOD);
+            buffer.put(PATTERN, (int) (position % PERIOD), PERIOD).flip();
+            DownloadTask.writeFully(channel, buffer, position);
+            assertFalse(buffer.hasRemaining());
+            assertEquals(0, channel.position());
+            assertEquals(position + PERIOD, channel.size());
+
+            ByteBuffer read = ByteBuffer.allocate(PERIOD);
+            while (read.hasRemaining() && channel.read(read, position + read.position()) > 0) {
+                // 读取写入的全部数据
+            }
+            byte[] bytes = read.array();
+            int offset = (int) (position % PERIOD);
+            for (int i = 0; i < PERIOD; i++) {
+                if (bytes[i] != PATTERN[offset + i]) fail("数据不一致, 位置: " + (position + i));
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * 读取数据并逐字节校验
+     *
+     * @param position 数据在文件中的起始位置
+     * @param limit    最多读取的字节数
+     * @return 读取的字节数
+     */
+    private static long readAndVerify(InputStream input, long position, long limit) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long count = 0;
+        while (count < limit) {
+            int length = input.read(buffer, 0, (int) Math.min(buffer.length, limit - count));
+            if (length == -1) break;
+            int offset = (int) ((position + count) % PERIOD);
+            for (int i = 0; i < length; i++) {
+                if (buffer[i] != PATTERN[offset + i % PERIOD]) {
+                    fail("数据不一致, 位置: " + (position + count + i));
+                }
+            }
+            count += length;
+        }
+        return count;
+    }
+
+    /**
+     * 处理一个连接上的所有请求, 支持 bytes=start- 格式的Range请求
+     */
+    private static void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                Charset.forName("ISO-8859-1")));
+        OutputStream output = socket.getOutputStream();
+        String requestLine;
+        while ((requestLine = reader.readLine()) != null && !requestLine.isEmpty()) {
+            long start = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                String lower = line.toLowerCase(Locale.US);
+                if (lower.startsWith("range:")) {
+                    String value = line.substring(line.indexOf('=') + 1).trim();
+                    start = Long.parseLong(value.substring(0, value.indexOf('-')));
+                }
+            }
+            StringBuilder header = new StringBuilder();
+            if (start > 0) {
+                header.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(start).append('-')
+                        .append(TOTAL - 1).append('/').append(TOTAL).append("\r\n");
+            } else {
+                header.append("HTTP/1.1 200 OK\r\n");
+            }
+            header.append("Accept-Ranges: bytes\r\n")
+                    .append("Content-Length: ").append(TOTAL - start).append("\r\n\r\n");
+            output.write(header.toString().getBytes(Charset.forName("ISO-8859-1")));
+
+            long position = start;
+            while (position < TOTAL) {
+                int offset = (int) (position % PERIOD);
+                int length = (int) Math.min(PERIOD, TOTAL - position);
+                output.write(PATTERN, offset, length);
+                position += length;
+            }
+            output.flush();
+        }
+    }
+}
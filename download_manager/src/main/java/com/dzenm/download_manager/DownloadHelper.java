@@ -7,25 +7,29 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.Settings;
-import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 
+import com.dzenm.download.ArtifactCache;
+import com.dzenm.download.DownloadProgressListener;
+import com.dzenm.download.SpeedEstimator;
+
 import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DownloadHelper {
 
@@ -59,18 +63,15 @@ public class DownloadHelper {
 
     private static final int DOWNLOAD_PROGRESS = 1001;
     private static final int DOWNLOAD_FAILED = 1002;
+    private static final int TASK_PROGRESS = 1003;
+    private static final int TASK_SUCCESS = 1004;
+    private static final int TASK_FAILED = 1005;
 
     /**
      * 安装包类型
      */
     private static final String MIME_TYPE = "application/vnd.android.package-archive";
 
-    /**
-     * 保存Download ID的shared_prefs文件名称
-     */
-    private static final String DOWNLOAD_PREF = "download_pref";
-    private static final String FILE_PATH = "file_path";
-
     private Context mContext;
 
     /**
@@ -83,10 +84,15 @@ public class DownloadHelper {
      */
     private DownloadManager mDownloadManager;
 
+    /**
+     * 下载状态监听, 在后台线程查询下载进度
+     */
+    private DownloadStatusObserver mStatusObserver;
+
     /**
      * 下载的任务ID
      */
-    private long mDownloadId;
+    private volatile long mDownloadId;
 
     /**
      * 下载监听回调事件 {@link #setOnDownloadListener(OnDownloadListener)}
@@ -94,6 +100,18 @@ public class DownloadHelper {
      */
     private OnDownloadListener mOnDownloadListener;
 
+    /**
+     * 多任务模式中跟踪的下载任务和对应的监听 {@link #track(long, OnDownloadListener)}
+     */
+    private final Map<Long, OnDownloadListener> mTaskListeners = new ConcurrentHashMap<>();
+
+    /**
+     * 根据查询到的进度估算下载速度, 单任务模式使用mSpeedEstimator, 多任务模式每个下载任务一个,
+     * 只在主线程处理进度消息时使用
+     */
+    private final SpeedEstimator mSpeedEstimator = new SpeedEstimator();
+    private final Map<Long, SpeedEstimator> mTaskSpeedEstimators = new ConcurrentHashMap<>();
+
     /**
      * 下载apk文件的url {@link #setUrl(String)}
      */
@@ -105,6 +123,16 @@ public class DownloadHelper {
      */
     private String mFilePath;
 
+    /**
+     * 文件的版本 {@link #setVersion(String)}, 与url一起作为下载完成的文件缓存的key
+     */
+    private String mVersion;
+
+    /**
+     * 下载完成的文件缓存 {@link #setArtifactCache(ArtifactCache)}
+     */
+    private ArtifactCache mArtifactCache;
+
     /**
      * 判断是否正在下载状态 {@link #isRunningDownload()}
      */
@@ -128,7 +156,18 @@ public class DownloadHelper {
         mContext = context;
         mDownloadManager = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
         mDownloadReceiver = new DownloadReceiver();
+        mStatusObserver = new DownloadStatusObserver(mDownloadManager, mContext.getContentResolver(),
+                new DownloadStatusObserver.Callback() {
+                    @Override
+                    public boolean onQuery(DownloadStatusObserver.Status status) {
+                        if (status.mDownloadId == mDownloadId) {
+                            return getDownloadManagerQueryStatus(status);
+                        }
+                        return dispatchTaskStatus(status);
+                    }
+                });
         mFilePath = mContext.getFilesDir().getAbsolutePath();
+        mArtifactCache = ArtifactCache.getDefault(mContext);
     }
 
     /**
@@ -158,6 +197,27 @@ public class DownloadHelper {
         return this;
     }
 
+    /**
+     * 设置文件的版本, 相同url和版本的文件已经下载过时直接使用缓存的文件, 不同版本的文件重新下载.
+     * 没有设置版本时每次都重新下载
+     *
+     * @param version 文件的版本, 例如APK的版本号 {@link #mVersion}
+     * @return this
+     */
+    public DownloadHelper setVersion(String version) {
+        mVersion = version;
+        return this;
+    }
+
+    /**
+     * @param artifactCache 下载完成的文件缓存, 默认使用 {@link ArtifactCache#getDefault(Context)}
+     * @return this
+     */
+    public DownloadHelper setArtifactCache(@NonNull ArtifactCache artifactCache) {
+        mArtifactCache = artifactCache;
+        return this;
+    }
+
     /**
      * @param onDownloadListener 下载监听回调  {@link #mOnDownloadListener}
      * @return this
@@ -178,15 +238,51 @@ public class DownloadHelper {
      * 开始下载
      */
     public void start() {
+        if (mVersion == null) {
+            startDownload(null);
+        } else {
+            startFromCache();
+        }
+    }
+
+    /**
+     * 在后台线程查找缓存并复制到下载文件路径, 命中缓存时不再下载
+     */
+    private void startFromCache() {
+        final String url = mUrl;
+        final String validator = ArtifactCache.versionValidator(mVersion);
+        final File file = getDownloadFile();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean isCached = false;
+                try {
+                    isCached = mArtifactCache.copyTo(url, validator, file);
+                } catch (IOException e) {
+                    Log.w(TAG, "读取缓存失败, 重新下载: " + e.getMessage());
+                }
+                final File cachedFile = isCached ? file : null;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        startDownload(cachedFile);
+                    }
+                });
+            }
+        }, "DownloadHelper-Cache").start();
+    }
+
+    /**
+     * @param cachedFile 缓存中已下载的文件, 为null时开始下载
+     */
+    private void startDownload(File cachedFile) {
         try {
-            SharedPreferences sp = mContext.getSharedPreferences(DOWNLOAD_PREF, Context.MODE_PRIVATE);
-            String filePath = sp.getString(FILE_PATH, "");
-            File file = new File(filePath);
-            if (TextUtils.isEmpty(filePath) || !file.exists()) {
+            if (cachedFile == null) {
                 startDownloadTask();
             } else {
-                Log.d(TAG, "文件已下载, 文件路径" + filePath);
-                downloadApkFileSuccessCallback(mContext, FileUtil.getUri(mContext, file));
+                Log.d(TAG, "文件已下载, 文件路径" + cachedFile.getAbsolutePath());
+                mFilePath = cachedFile.getAbsolutePath();
+                downloadApkFileSuccessCallback(mContext, FileUtil.getUri(mContext, cachedFile));
             }
         } catch (Exception e) {
             stop();
@@ -201,6 +297,53 @@ public class DownloadHelper {
         removeDownloadTask();
     }
 
+    /**
+     * 多任务模式, 添加一个下载任务并跟踪下载状态. 所有跟踪的下载任务通过一次查询刷新状态,
+     * 回调在主线程执行, 下载成功或者失败后自动停止跟踪
+     *
+     * @param request  下载请求
+     * @param listener 下载任务的监听, 可以为null
+     * @return 下载任务ID
+     */
+    public long enqueue(DownloadManager.Request request, OnDownloadListener listener) {
+        if (listener != null) listener.onPrepared(request);
+        long downloadId = mDownloadManager.enqueue(request);
+        Log.d(TAG, "添加下载任务, Download ID: " + downloadId);
+        track(downloadId, listener);
+        return downloadId;
+    }
+
+    /**
+     * 多任务模式, 跟踪已经添加到DownloadManager的下载任务, 例如应用重启前添加的下载任务
+     *
+     * @param downloadId 下载任务ID
+     * @param listener   下载任务的监听, 可以为null
+     * @return this
+     */
+    public DownloadHelper track(long downloadId, OnDownloadListener listener) {
+        if (listener != null) mTaskListeners.put(downloadId, listener);
+        mStatusObserver.add(downloadId);
+        return this;
+    }
+
+    /**
+     * 多任务模式, 停止跟踪下载任务, 不会取消DownloadManager中的下载
+     *
+     * @param downloadId 下载任务ID
+     * @return this
+     */
+    public DownloadHelper untrack(long downloadId) {
+        finishTrackedTask(downloadId);
+        return this;
+    }
+
+    /**
+     * @return 多任务模式中正在跟踪的下载任务数量
+     */
+    public int getTrackedCount() {
+        return mTaskListeners.size();
+    }
+
     /**
      * 注册下载监听广播
      */
@@ -256,10 +399,14 @@ public class DownloadHelper {
         registerDownloadBroadcast();
         if (isDownloadManager()) {
             // 先清空之前的下载
-            if (mDownloadId != DOWNLOAD_DEFAULT_ID) removeTask(mDownloadId);
-            mHandler.post(mRunnable);
+            if (mDownloadId != DOWNLOAD_DEFAULT_ID) {
+                mStatusObserver.remove(mDownloadId);
+                removeTask(mDownloadId);
+            }
             // 获取下载任务ID
             mDownloadId = mDownloadManager.enqueue(getRequest(mUrl));
+            // 获取到下载任务ID之后开始监听下载进度
+            mStatusObserver.add(mDownloadId);
             Log.i(TAG, "已注册下载监听广播, 开始下载..." + ", 下载任务Download ID: " + mDownloadId);
         } else {
             callBrowserToDownload();
@@ -291,8 +438,10 @@ public class DownloadHelper {
      * 移除下载任务, 移除进度查询， 取消广播的注册
      */
     private void removeDownloadTask() {
-        // 移除查询下载进度执行事件
-        mHandler.removeCallbacks(mRunnable);
+        // 停止查询下载进度, 移除还未处理的进度消息
+        mStatusObserver.remove(mDownloadId);
+        mHandler.removeMessages(DOWNLOAD_PROGRESS);
+        mSpeedEstimator.reset();
         unregisterDownloadBroadcast();
         Log.i(TAG, "移除下载任务, 移除进度查询, 取消注册下载监听广播");
     }
@@ -307,10 +456,8 @@ public class DownloadHelper {
 
         // 自定义文件路径
         String fileName = mUrl.substring(mUrl.lastIndexOf("/") + 1);
-        if (!mFilePath.substring(mFilePath.lastIndexOf("/") + 1).contains(".")) {
-            mFilePath = mFilePath + File.separator + fileName;
-        }
-        File file = new File(mFilePath);
+        File file = getDownloadFile();
+        mFilePath = file.getPath();
         Uri uri = Uri.fromFile(file);
         // 如果使用content// 开头的Uri指定下载目标路径, 下载失败: Not a file URI: content://
         request.setDestinationUri(uri);
@@ -331,6 +478,38 @@ public class DownloadHelper {
         return request;
     }
 
+    /**
+     * @return 下载文件, 文件路径是目录时使用url中的文件名
+     */
+    private File getDownloadFile() {
+        String fileName = mUrl.substring(mUrl.lastIndexOf("/") + 1);
+        if (!mFilePath.substring(mFilePath.lastIndexOf("/") + 1).contains(".")) {
+            return new File(mFilePath + File.separator + fileName);
+        }
+        return new File(mFilePath);
+    }
+
+    /**
+     * 在后台线程将下载完成的文件写入缓存
+     *
+     * @param file 下载完成的文件
+     */
+    private void putToCache(final File file) {
+        if (mVersion == null) return;
+        final String url = mUrl;
+        final String validator = ArtifactCache.versionValidator(mVersion);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mArtifactCache.put(url, validator, file);
+                } catch (IOException e) {
+                    Log.w(TAG, "写入缓存失败: " + e.getMessage());
+                }
+            }
+        }, "DownloadHelper-Cache").start();
+    }
+
     /**
      * 接收传递的进度
      */
@@ -340,46 +519,55 @@ public class DownloadHelper {
         public void handleMessage(@NonNull Message msg) {
             if (msg.what == DOWNLOAD_PROGRESS) {
                 long[] fileSize = (long[]) msg.obj;
-                if (mOnDownloadListener != null)
-                    mOnDownloadListener.onProgress(fileSize[0], fileSize[1]);
+                // 停止下载后查询线程中可能还有已经发出的进度消息
+                if (isRunningDownload && mOnDownloadListener != null)
+                    notifyProgress(mOnDownloadListener, mSpeedEstimator, fileSize[0], fileSize[1]);
             } else if (msg.what == DOWNLOAD_FAILED) {
                 setDownloadFailed((String) msg.obj);
+            } else if (msg.what == TASK_PROGRESS) {
+                DownloadStatusObserver.Status status = (DownloadStatusObserver.Status) msg.obj;
+                OnDownloadListener listener = mTaskListeners.get(status.mDownloadId);
+                if (listener != null) {
+                    SpeedEstimator estimator = mTaskSpeedEstimators.get(status.mDownloadId);
+                    if (estimator == null) {
+                        estimator = new SpeedEstimator();
+                        mTaskSpeedEstimators.put(status.mDownloadId, estimator);
+                    }
+                    notifyProgress(listener, estimator, status.mDownloadedSize, status.mTotalSize);
+                }
+            } else if (msg.what == TASK_SUCCESS) {
+                DownloadStatusObserver.Status status = (DownloadStatusObserver.Status) msg.obj;
+                OnDownloadListener listener = finishTrackedTask(status.mDownloadId);
+                if (listener != null) {
+                    Uri uri = mDownloadManager.getUriForDownloadedFile(status.mDownloadId);
+                    listener.onSuccess(uri, status.mMediaType);
+                }
+            } else if (msg.what == TASK_FAILED) {
+                DownloadStatusObserver.Status status = (DownloadStatusObserver.Status) msg.obj;
+                OnDownloadListener listener = finishTrackedTask(status.mDownloadId);
+                String failedMessage = getFailedMessage(status.mReason, "下载失败");
+                Log.e(TAG, "下载任务" + status.mDownloadId + "失败: " + failedMessage);
+                if (listener != null) listener.onFailed(failedMessage);
             }
         }
     };
 
     /**
-     * 执行查询下载任务
-     */
-    private final Runnable mRunnable = new Runnable() {
-        @Override
-        public void run() {
-            getDownloadManagerQueryStatus();
-            mHandler.post(mRunnable);
-        }
-    };
-
-    /**
-     * 查询下载状态
+     * 解析下载状态, 在 {@link DownloadStatusObserver} 的查询线程中执行, 进度和失败通过mHandler回到主线程
+     *
+     * @param status 下载任务的状态
+     * @return 是否继续查询, 下载成功或者失败后不再查询
      */
-    private void getDownloadManagerQueryStatus() {
-        DownloadManager.Query query = new DownloadManager.Query().setFilterById(mDownloadId);
-        // 通过ID向下载管理查询下载情况，返回一个cursor
-        Cursor cursor = mDownloadManager.query(query);
-        if (cursor == null) return;
-        if (!cursor.moveToFirst()) return;
-
+    private boolean getDownloadManagerQueryStatus(DownloadStatusObserver.Status status) {
         String msg = "下载失败:";
-        int status = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS));
-        if (status == DownloadManager.STATUS_PENDING) {
+        if (status.mStatus == DownloadManager.STATUS_PENDING) {
             Log.i(TAG, "等待下载");
 
-        } else if (status == DownloadManager.STATUS_RUNNING) {      // 查询下载进度
-            // 以下是从游标中进行信息提取
-            long downloadSoFar = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-            long downloadTotalSize = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+        } else if (status.mStatus == DownloadManager.STATUS_RUNNING) {      // 查询下载进度
+            long downloadSoFar = status.mDownloadedSize;
+            long downloadTotalSize = status.mTotalSize;
 
-            if (downloadTotalSize == -1) return;
+            if (downloadTotalSize == -1) return true;
 
             Log.i(TAG, "总文件大小: " + downloadTotalSize + ", 正在下载进度: " + downloadSoFar);
             Message message = Message.obtain();
@@ -387,48 +575,127 @@ public class DownloadHelper {
             message.obj = new long[]{downloadSoFar, downloadTotalSize};
 
             mHandler.sendMessage(message);
-        } else if (status == DownloadManager.STATUS_PAUSED) {         // 查看下载暂停的原因
-            // 以下是从游标中进行信息提取
-            String title = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_TITLE));
-            int reason = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON));
-            if (reason == DownloadManager.PAUSED_QUEUED_FOR_WIFI) {
-                msg = title + ": 等待连接Wi-Fi网络";
-            } else if (reason == DownloadManager.PAUSED_WAITING_FOR_NETWORK) {
-                msg = title + ": 等待连接网络";
-            } else if (reason == DownloadManager.PAUSED_WAITING_TO_RETRY) {
-                msg = title + ": 等待重试...";
-            }
+        } else if (status.mStatus == DownloadManager.STATUS_PAUSED) {         // 查看下载暂停的原因
+            msg = getPausedMessage(status);
             Log.e(TAG, "下载暂停: " + msg);
-        } else if (status == DownloadManager.STATUS_SUCCESSFUL) {
+        } else if (status.mStatus == DownloadManager.STATUS_SUCCESSFUL) {
+            // 下载完成由DownloadReceiver处理
             Log.i(TAG, "下载成功");
-        } else if (status == DownloadManager.STATUS_FAILED) {      // 查看下载错误的原因
-            int reason = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON));
-            if (reason == DownloadManager.ERROR_FILE_ERROR) {
-                msg = "文件错误";
-            } else if (reason == DownloadManager.ERROR_UNHANDLED_HTTP_CODE) {
-                msg = "未处理的HTTP错误码";
-            } else if (reason == DownloadManager.ERROR_HTTP_DATA_ERROR) {
-                msg = "数据接收或处理错误";
-            } else if (reason == DownloadManager.ERROR_TOO_MANY_REDIRECTS) {
-                msg = "重定向错误";
-            } else if (reason == DownloadManager.ERROR_INSUFFICIENT_SPACE) {
-                msg = "存储空间不足";
-            } else if (reason == DownloadManager.ERROR_DEVICE_NOT_FOUND) {
-                msg = "设备未找到";
-            } else if (reason == DownloadManager.ERROR_CANNOT_RESUME) {
-                msg = "恢复下载失败";
-            } else if (reason == DownloadManager.ERROR_FILE_ALREADY_EXISTS) {
-                msg = "文件已存在";
-            } else if (reason == DownloadManager.ERROR_UNKNOWN) {
-                msg = "未知错误";
-            }
+            return false;
+        } else if (status.mStatus == DownloadManager.STATUS_FAILED) {      // 查看下载错误的原因
+            msg = getFailedMessage(status.mReason, msg);
             Log.e(TAG, "下载失败: " + msg);
             Message message = Message.obtain();
             message.what = DOWNLOAD_FAILED;
             message.obj = msg;
             mHandler.sendMessage(message);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析多任务模式中下载任务的状态, 在 {@link DownloadStatusObserver} 的查询线程中执行,
+     * 结果通过mHandler回到主线程分发给下载任务的监听
+     *
+     * @param status 下载任务的状态
+     * @return 是否继续查询, 下载成功或者失败后不再查询
+     */
+    private boolean dispatchTaskStatus(DownloadStatusObserver.Status status) {
+        int what;
+        if (status.mStatus == DownloadManager.STATUS_RUNNING) {
+            if (status.mTotalSize == -1) return true;
+            what = TASK_PROGRESS;
+        } else if (status.mStatus == DownloadManager.STATUS_PAUSED) {
+            Log.d(TAG, "下载任务" + status.mDownloadId + "暂停: " + getPausedMessage(status));
+            return true;
+        } else if (status.mStatus == DownloadManager.STATUS_SUCCESSFUL) {
+            what = TASK_SUCCESS;
+        } else if (status.mStatus == DownloadManager.STATUS_FAILED) {
+            what = TASK_FAILED;
+        } else {
+            return true;
+        }
+        Message message = Message.obtain();
+        message.what = what;
+        message.obj = status;
+        mHandler.sendMessage(message);
+        return what == TASK_PROGRESS;
+    }
+
+    /**
+     * @param status 暂停的下载任务状态
+     * @return 暂停的原因
+     */
+    private static String getPausedMessage(DownloadStatusObserver.Status status) {
+        String title = status.mTitle;
+        int reason = status.mReason;
+        String msg = "下载失败:";
+        if (reason == DownloadManager.PAUSED_QUEUED_FOR_WIFI) {
+            msg = title + ": 等待连接Wi-Fi网络";
+        } else if (reason == DownloadManager.PAUSED_WAITING_FOR_NETWORK) {
+            msg = title + ": 等待连接网络";
+        } else if (reason == DownloadManager.PAUSED_WAITING_TO_RETRY) {
+            msg = title + ": 等待重试...";
+        }
+        return msg;
+    }
+
+    /**
+     * @param reason 失败的原因 {@link DownloadManager#COLUMN_REASON}
+     * @param msg    未知原因时返回的错误信息
+     * @return 下载失败的错误信息
+     */
+    private static String getFailedMessage(int reason, String msg) {
+        if (reason == DownloadManager.ERROR_FILE_ERROR) {
+            msg = "文件错误";
+        } else if (reason == DownloadManager.ERROR_UNHANDLED_HTTP_CODE) {
+            msg = "未处理的HTTP错误码";
+        } else if (reason == DownloadManager.ERROR_HTTP_DATA_ERROR) {
+            msg = "数据接收或处理错误";
+        } else if (reason == DownloadManager.ERROR_TOO_MANY_REDIRECTS) {
+            msg = "重定向错误";
+        } else if (reason == DownloadManager.ERROR_INSUFFICIENT_SPACE) {
+            msg = "存储空间不足";
+        } else if (reason == DownloadManager.ERROR_DEVICE_NOT_FOUND) {
+            msg = "设备未找到";
+        } else if (reason == DownloadManager.ERROR_CANNOT_RESUME) {
+            msg = "恢复下载失败";
+        } else if (reason == DownloadManager.ERROR_FILE_ALREADY_EXISTS) {
+            msg = "文件已存在";
+        } else if (reason == DownloadManager.ERROR_UNKNOWN) {
+            msg = "未知错误";
+        }
+        return msg;
+    }
+
+    /**
+     * 多任务模式中的下载任务结束, 移除监听并停止查询
+     *
+     * @param downloadId 下载任务ID
+     * @return 下载任务的监听, 已经取消跟踪时返回null
+     */
+    private OnDownloadListener finishTrackedTask(long downloadId) {
+        mStatusObserver.remove(downloadId);
+        mTaskSpeedEstimators.remove(downloadId);
+        return mTaskListeners.remove(downloadId);
+    }
+
+    /**
+     * 回调下载进度, 监听为 {@link DownloadProgressListener} 时回调包含速度和剩余时间的进度
+     *
+     * @param listener      下载监听
+     * @param estimator     下载任务的速度估算
+     * @param soFar         已经下载的大小
+     * @param totalFileSize 文件大小
+     */
+    private static void notifyProgress(OnDownloadListener listener, SpeedEstimator estimator,
+                                       long soFar, long totalFileSize) {
+        if (listener instanceof DownloadProgressListener) {
+            ((DownloadProgressListener) listener).onProgress(estimator.update(totalFileSize, soFar));
+        } else {
+            listener.onProgress(soFar, totalFileSize);
         }
-        if (!cursor.isClosed()) cursor.close();
     }
 
     /**
@@ -474,11 +741,8 @@ public class DownloadHelper {
         Log.d(TAG, "接收下载文件的ID: " + id + ", 接收下载文件uri: " + uri);
 
         String type = downloadManager.getMimeTypeForDownloadedFile(id);    // 下载文件的ID
-        // 保存文件的ID和存储路径
-        SharedPreferences sp = context.getSharedPreferences(DOWNLOAD_PREF, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putString(FILE_PATH, mFilePath);
-        editor.apply();
+        // 下载完成的文件写入缓存, 相同url和版本的文件不再重复下载
+        putToCache(new File(mFilePath));
 
         // 当下载文件类型为安装版类型时, 进入安装APK界面
         if (MIME_TYPE.equals(type)) {
@@ -0,0 +1,300 @@
+package com.dzenm.download_manager;
+
+import android.app.DownloadManager;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 监听系统下载任务的状态变化, 所有查询都在后台线程执行, 主线程不查询下载数据库.
+ * 可以同时监听多个下载任务, 每次通过一个 {@link DownloadManager.Query#setFilterById(long...)} 查询所有任务,
+ * 游标的列索引只解析一次.
+ * 在下载数据库的Uri上注册ContentObserver, 下载数据库更新时查询下载状态; 部分系统不会通知下载数据库的变化,
+ * 同时按自适应的间隔查询: 进度有变化但没有收到通知时使用最短间隔, 收到通知或者进度没有变化时逐渐延长间隔
+ */
+class DownloadStatusObserver {
+
+    private static final String TAG = DownloadStatusObserver.class.getSimpleName();
+
+    /**
+     * 当前应用的下载任务在下载数据库中的Uri
+     */
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+
+    /**
+     * 两次查询之间的最短间隔(毫秒), 短时间内的多次通知合并为一次查询
+     */
+    private static final long MIN_QUERY_INTERVAL = 200;
+
+    /**
+     * 没有收到通知时的查询间隔范围(毫秒)
+     */
+    private static final long MIN_POLL_INTERVAL = 500;
+    private static final long MAX_POLL_INTERVAL = 8000;
+
+    interface Callback {
+
+        /**
+         * 查询到下载状态, 在后台线程回调, 每个下载任务回调一次
+         *
+         * @param status 下载任务的状态
+         * @return 是否继续监听该下载任务, 下载成功或者失败后返回false
+         */
+        boolean onQuery(Status status);
+    }
+
+    private final DownloadManager mDownloadManager;
+    private final ContentResolver mContentResolver;
+    private final Callback mCallback;
+
+    /**
+     * 正在监听的下载任务ID, 调用线程添加, 查询线程移除
+     */
+    private final Set<Long> mDownloadIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * 以下字段加锁访问, 调用线程启动和停止查询, 查询线程在没有监听的下载任务时停止查询
+     */
+    private HandlerThread mQueryThread;
+    private Handler mQueryHandler;
+    private Runnable mQueryRunnable;
+    private ContentObserver mContentObserver;
+
+    /**
+     * 以下字段只在查询线程中访问
+     */
+    private Columns mColumns;
+    private long mPollInterval = MIN_POLL_INTERVAL;
+    private long mLastQueryTime = 0;
+    private long mLastDownloadedSize = -1;
+    private boolean isNotified = false;
+
+    DownloadStatusObserver(DownloadManager downloadManager, ContentResolver contentResolver,
+                           Callback callback) {
+        mDownloadManager = downloadManager;
+        mContentResolver = contentResolver;
+        mCallback = callback;
+    }
+
+    /**
+     * 添加监听的下载任务, 立即查询一次下载状态
+     *
+     * @param downloadId 下载任务ID
+     */
+    synchronized void add(long downloadId) {
+        mDownloadIds.add(downloadId);
+        if (mQueryThread == null) startQueryThread();
+        mQueryHandler.post(mQueryRunnable);
+    }
+
+    /**
+     * 移除监听的下载任务, 没有监听的下载任务时结束查询线程
+     *
+     * @param downloadId 下载任务ID
+     */
+    synchronized void remove(long downloadId) {
+        mDownloadIds.remove(downloadId);
+        if (mDownloadIds.isEmpty()) stop();
+    }
+
+    /**
+     * 停止监听所有下载任务, 取消注册ContentObserver并结束查询线程
+     */
+    synchronized void stop() {
+        mDownloadIds.clear();
+        stopQueryThread();
+    }
+
+    /**
+     * 查询线程中所有的下载任务都已经结束, 没有再添加新的下载任务时停止查询
+     *
+     * @param queryThread 结束查询的线程, 已经停止或者重新启动了其它线程时不处理
+     */
+    private synchronized void onQueryFinished(HandlerThread queryThread) {
+        if (mQueryThread != queryThread || !mDownloadIds.isEmpty()) return;
+        Log.d(TAG, "没有监听的下载任务, 结束查询线程");
+        stopQueryThread();
+    }
+
+    private void stopQueryThread() {
+        if (mContentObserver != null) {
+            mContentResolver.unregisterContentObserver(mContentObserver);
+            mContentObserver = null;
+        }
+        if (mQueryThread != null) {
+            // 已经到期的查询执行完成后线程结束, 之后的查询和通知不再执行
+            mQueryThread.quitSafely();
+            mQueryThread = null;
+            mQueryHandler = null;
+            mQueryRunnable = null;
+        }
+    }
+
+    private void startQueryThread() {
+        final HandlerThread queryThread = new HandlerThread("DownloadHelper-Query");
+        queryThread.start();
+        mQueryThread = queryThread;
+        final Handler queryHandler = new Handler(queryThread.getLooper());
+        final Runnable queryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                queryHandler.removeCallbacks(this);
+                mLastQueryTime = SystemClock.uptimeMillis();
+                if (query()) {
+                    queryHandler.postDelayed(this, mPollInterval);
+                } else {
+                    onQueryFinished(queryThread);
+                }
+            }
+        };
+        mPollInterval = MIN_POLL_INTERVAL;
+        mLastQueryTime = 0;
+        mLastDownloadedSize = -1;
+        isNotified = false;
+
+        // 通知在查询线程中回调, 与查询共用同一个线程, 不需要同步.
+        // 监听所有下载任务的父Uri, 一个ContentObserver覆盖所有的下载任务
+        mContentObserver = new ContentObserver(queryHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                isNotified = true;
+                long delay = mLastQueryTime + MIN_QUERY_INTERVAL - SystemClock.uptimeMillis();
+                queryHandler.removeCallbacks(queryRunnable);
+                queryHandler.postDelayed(queryRunnable, Math.max(0, delay));
+            }
+        };
+        mContentResolver.registerContentObserver(DOWNLOADS_URI, true, mContentObserver);
+        mQueryHandler = queryHandler;
+        mQueryRunnable = queryRunnable;
+    }
+
+    /**
+     * 一次查询所有监听的下载任务并根据是否收到通知和进度变化调整下一次查询的间隔
+     *
+     * @return 是否继续查询
+     */
+    private boolean query() {
+        long[] downloadIds = toArray(mDownloadIds);
+        if (downloadIds.length == 0) return false;
+        Cursor cursor = null;
+        try {
+            cursor = mDownloadManager.query(new DownloadManager.Query().setFilterById(downloadIds));
+            if (cursor == null) return true;
+            if (mColumns == null) mColumns = new Columns(cursor);
+
+            Set<Long> missingIds = new HashSet<>(mDownloadIds);
+            long downloadedSize = 0;
+            while (cursor.moveToNext()) {
+                Status status = new Status(cursor, mColumns);
+                missingIds.remove(status.mDownloadId);
+                downloadedSize += Math.max(0, status.mDownloadedSize);
+                if (!mCallback.onQuery(status)) {
+                    mDownloadIds.remove(status.mDownloadId);
+                }
+            }
+            // 下载任务已经被其它地方移除, 不再查询
+            for (Long downloadId : missingIds) {
+                Log.w(TAG, "下载任务不存在: " + downloadId);
+                mDownloadIds.remove(downloadId);
+            }
+
+            if (isNotified || downloadedSize == mLastDownloadedSize) {
+                mPollInterval = Math.min(mPollInterval * 2, MAX_POLL_INTERVAL);
+            } else {
+                mPollInterval = MIN_POLL_INTERVAL;
+            }
+            isNotified = false;
+            mLastDownloadedSize = downloadedSize;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "查询下载状态失败", e);
+        } finally {
+            if (cursor != null && !cursor.isClosed()) cursor.close();
+        }
+        return !mDownloadIds.isEmpty();
+    }
+
+    private static long[] toArray(Set<Long> set) {
+        long[] array = new long[set.size()];
+        int count = 0;
+        Iterator<Long> iterator = set.iterator();
+        // 遍历时其它线程可能修改集合, 以实际遍历到的数量为准
+        while (iterator.hasNext() && count < array.length) {
+            array[count++] = iterator.next();
+        }
+        if (count == array.length) return array;
+        long[] result = new long[count];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * 下载数据库查询结果的列索引, DownloadManager查询的列固定, 只需要解析一次
+     */
+    private static class Columns {
+
+        private final int mId;
+        private final int mStatus;
+        private final int mReason;
+        private final int mDownloadedSize;
+        private final int mTotalSize;
+        private final int mTitle;
+        private final int mMediaType;
+
+        Columns(Cursor cursor) {
+            mId = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_ID);
+            mStatus = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS);
+            mReason = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_REASON);
+            mDownloadedSize = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+            mTotalSize = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+            mTitle = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_TITLE);
+            mMediaType = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_MEDIA_TYPE);
+        }
+    }
+
+    /**
+     * 一个下载任务的状态, 从查询结果的一行中读取, 游标关闭后仍然可以使用
+     */
+    static class Status {
+
+        final long mDownloadId;
+
+        /**
+         * 下载状态 {@link DownloadManager#STATUS_RUNNING} 等
+         */
+        final int mStatus;
+
+        /**
+         * 暂停或者失败的原因 {@link DownloadManager#COLUMN_REASON}
+         */
+        final int mReason;
+        final long mDownloadedSize;
+
+        /**
+         * 文件大小, 未知时为-1
+         */
+        final long mTotalSize;
+        final String mTitle;
+        final String mMediaType;
+
+        private Status(Cursor cursor, Columns columns) {
+            mDownloadId = cursor.getLong(columns.mId);
+            mStatus = cursor.getInt(columns.mStatus);
+            mReason = cursor.getInt(columns.mReason);
+            mDownloadedSize = cursor.getLong(columns.mDownloadedSize);
+            mTotalSize = cursor.getLong(columns.mTotalSize);
+            mTitle = cursor.getString(columns.mTitle);
+            mMediaType = cursor.getString(columns.mMediaType);
+        }
+    }
+}
@@ -82,7 +82,11 @@ class UpgradeManager private constructor(val activity: AppCompatActivity) : OnDo
      * @return this
      */
     fun setNewVersionCode(newVersionCode: Long): UpgradeManager =
-        apply { isNeedUpdate = checkIsNeedUpdate(newVersionCode) }
+        apply {
+            isNeedUpdate = checkIsNeedUpdate(newVersionCode)
+            // 版本号作为下载缓存的key, 旧版本的安装包不会被当作新版本安装
+            mDownloadHelper.setVersion(newVersionCode.toString())
+        }
 
     /**
      * @param versionName 下载的新版本名称
@@ -165,7 +169,7 @@ class UpgradeManager private constructor(val activity: AppCompatActivity) : OnDo
     }
 
     override fun onProgress(soFar: Long, totalFileSize: Long) {
-        iView.flush((100 * soFar / totalFileSize).toInt())
+        if (totalFileSize > 0) iView.flush((100 * soFar / totalFileSize).toInt())
     }
 
     override fun onSuccess(uri: Uri, mimeType: String) {